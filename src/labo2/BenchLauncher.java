@@ -0,0 +1,52 @@
+package labo2;
+
+import labo2.bench.*;
+import labo2.utils.Logger;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The benchmark launcher
+ * Runs every benchmark in sequence with logging disabled.
+ */
+public class BenchLauncher {
+	/**
+	 * Benchmarks to run
+	 */
+	private static BenchConstructor[] benchmarks = new BenchConstructor[] {
+		ResolveThroughputBench::new,
+		ReplicationBench::new,
+		CatalogBench::new,
+		FootprintBench::new,
+		CodecBench::new,
+		AsyncBench::new,
+		FailOverBench::new
+	};
+
+	/**
+	 * Interface of a benchmark constructor.
+	 */
+	@FunctionalInterface
+	public interface BenchConstructor {
+		Benchmark construct();
+	}
+
+	/**
+	 * Benchmarks launcher.
+	 *
+	 * @param args names of the benchmarks to run, every benchmark is run if none is given
+	 */
+	public static void main(String[] args) throws IOException {
+		Logger.setEnabled(false);
+		List<String> selected = Arrays.asList(args);
+		for (BenchConstructor constructor : benchmarks) {
+			Benchmark benchmark = constructor.construct();
+			if (selected.isEmpty() || selected.contains(benchmark.name())) {
+				benchmark.run();
+			}
+		}
+		System.exit(0);
+	}
+}
@@ -7,7 +7,12 @@ import labo2.services.Time;
 import labo2.utils.Logger;
 import labo2.utils.Task;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 import static labo2.protocol.Protocol.RESOLVERS;
 
@@ -25,7 +30,18 @@ public class TestLauncher {
 		RoundRobinTest::new,
 		FailOverTest::new,
 		ResolverRecoveryTest::new,
-		OfflineEchoTest::new
+		OfflineEchoTest::new,
+		ConcurrentOfflineTest::new,
+		HeartbeatTest::new,
+		SlowAgentTest::new,
+		WireVersionTest::new,
+		CacheTest::new,
+		HedgingTest::new,
+		BreakerTest::new,
+		AsyncTest::new,
+		MembershipTest::new,
+		ColdRestartTest::new,
+		UnavailableTest::new
 	};
 
 	/**
@@ -45,10 +61,11 @@ public class TestLauncher {
 		public final Task<?>[] services;
 
 		/**
-		 * Constructs a new test context with as much resolvers as defined and 3 services.
+		 * Constructs a new test context with as much resolvers as defined, one
+		 * more joining at runtime, and 3 services.
 		 */
 		public TestContext() {
-			resolvers = new Resolver[RESOLVERS.length];
+			resolvers = new Resolver[RESOLVERS.length + 1];
 			services = new Task<?>[3];
 		}
 
@@ -180,29 +197,69 @@ public class TestLauncher {
 		}
 	}
 
+	/**
+	 * Restores a system property to its value before the test suite.
+	 *
+	 * @param key   the property name
+	 * @param value the previous value, null if the property was not set
+	 */
+	private static void restore(String key, String value) {
+		if (value == null) System.clearProperty(key);
+		else System.setProperty(key, value);
+	}
+
+	/**
+	 * Deletes a directory and its content, as far as possible.
+	 *
+	 * @param directory the directory to delete
+	 */
+	private static void delete(Path directory) {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(file);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * System simulation launcher.
 	 *
 	 * @param args useless
 	 */
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
 		// Launcher logger
 		Logger log = Logger.getLogger("launcher");
 		TestContext ctx = new TestContext();
 
-		log.println("*** Launching resolvers...");
-		ctx.startResolver(0, 1, 2);
+		// Short heartbeat interval for HeartbeatTest
+		String interval = System.setProperty("labo2.heartbeat.interval", "500");
 
-		log.println("*** Launching default services");
-		ctx.startService(0, Echo::instantiate, "echo:1");
-		ctx.startService(1, Time::instantiate, "time:1");
-		ctx.startService(2, Time::instantiate, "time:2");
+		// Persistent resolvers for ColdRestartTest
+		// deleted on exit, including when a failed test exits the launcher
+		Path data = Files.createTempDirectory("labo2");
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(data)));
+		String store = System.setProperty("labo2.resolver.data", data.toString());
 
-		log.println("*** Starting test suite");
-		for (TestConstructor t : tests) test(ctx, t);
+		try {
+			log.println("*** Launching resolvers...");
+			ctx.startResolver(0, 1, 2);
 
-		log.println("*** Tests successful, shutting down.");
-		ctx.stopResolver(0, 1, 2);
-		ctx.stopService(0, 1, 2);
+			log.println("*** Launching default services");
+			ctx.startService(0, Echo::instantiate, "echo:1");
+			ctx.startService(1, Time::instantiate, "time:1");
+			ctx.startService(2, Time::instantiate, "time:2");
+
+			log.println("*** Starting test suite");
+			for (TestConstructor t : tests) test(ctx, t);
+
+			log.println("*** Tests successful, shutting down.");
+			ctx.stopResolver(0, 1, 2);
+			ctx.stopService(0, 1, 2);
+		} finally {
+			restore("labo2.heartbeat.interval", interval);
+			restore("labo2.resolver.data", store);
+		}
 	}
 }
@@ -0,0 +1,59 @@
+package labo2.bench;
+
+import labo2.protocol.AsyncResolverClient;
+import labo2.protocol.ResolverClient;
+import labo2.resolver.Resolver;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the resolution throughput of a single client, synchronous or
+ * asynchronous with a growing number of requests in flight.
+ */
+public class AsyncBench extends Benchmark {
+	private static final int[] WINDOWS = { 1, 16, 256, 4096 };
+	private static final long DURATION = 2000;
+
+	public String name() { return "async"; }
+	protected String desc() { return "Resolutions per second of a single client by requests in flight"; }
+
+	protected void execute() throws IOException {
+		Resolver resolver = Resolver.intantiate("0");
+		resolver.start();
+		resolver.sync();
+
+		try (ResolverClient client = ResolverClient.withNewSocket()) {
+			client.setResolverIndex(0).register(0, 1);
+			long count = 0;
+			long deadline = System.currentTimeMillis() + DURATION;
+			while (System.currentTimeMillis() < deadline) {
+				client.resolve(0);
+				count++;
+			}
+			report("sync: %.0f req/s", count * 1000.0 / DURATION);
+		}
+
+		try (AsyncResolverClient client = AsyncResolverClient.open().setResolverIndex(0)) {
+			for (int window : WINDOWS) {
+				Semaphore slots = new Semaphore(window);
+				AtomicLong done = new AtomicLong();
+				AtomicLong failed = new AtomicLong();
+				long deadline = System.currentTimeMillis() + DURATION;
+				while (System.currentTimeMillis() < deadline) {
+					slots.acquireUninterruptibly();
+					client.resolve(0).whenComplete((address, error) -> {
+						(error == null ? done : failed).incrementAndGet();
+						slots.release();
+					});
+				}
+				slots.acquireUninterruptibly(window);
+				report("async window=%d: %.0f req/s, %d failed", window, done.get() * 1000.0 / DURATION, failed.get());
+			}
+		}
+
+		resolver.stop();
+		resolver.result();
+	}
+}
@@ -0,0 +1,138 @@
+package labo2.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class for benchmarks.
+ * <p>
+ * Benchmarks are run sequentially by the BenchLauncher with loggers disabled,
+ * results are printed directly to stdout.
+ */
+public abstract class Benchmark {
+	public abstract String name();
+	protected abstract String desc();
+	protected abstract void execute() throws IOException;
+
+	/**
+	 * An operation measured by a benchmark.
+	 */
+	@FunctionalInterface
+	protected interface Operation extends Closeable {
+		/**
+		 * Runs the operation once.
+		 *
+		 * @return true if the operation completed, false if it was lost
+		 */
+		boolean run() throws IOException;
+
+		/**
+		 * Releases the resources of the operation, once the measure is over.
+		 */
+		@Override
+		default void close() throws IOException {}
+	}
+
+	/**
+	 * A factory creating one operation per benchmark thread.
+	 */
+	@FunctionalInterface
+	protected interface OperationFactory {
+		Operation create() throws IOException;
+	}
+
+	/**
+	 * Number of operations lost during the last throughput measure
+	 */
+	private long lost;
+
+	/**
+	 * Returns an operation closing the given resource once the measure is over.
+	 *
+	 * @param resource  the resource used by the operation
+	 * @param operation the operation
+	 * @return the operation
+	 */
+	protected static Operation closing(Closeable resource, Operation operation) {
+		return new Operation() {
+			@Override
+			public boolean run() throws IOException {
+				return operation.run();
+			}
+
+			@Override
+			public void close() throws IOException {
+				resource.close();
+			}
+		};
+	}
+
+	/**
+	 * Runs the benchmark and prints its header.
+	 */
+	public final void run() throws IOException {
+		System.out.printf("=== %s: %s ===\n", name(), desc());
+		execute();
+	}
+
+	/**
+	 * Measures the throughput of an operation executed concurrently by many threads.
+	 * Only completed operations are counted, lost ones are counted apart and
+	 * returned by lost(). Operations are closed once the measure is over.
+	 *
+	 * @param threads  the number of threads
+	 * @param millis   the duration of the measure
+	 * @param factory  the factory creating the operation of each thread
+	 * @return the number of completed operations per second
+	 */
+	protected double throughput(int threads, long millis, OperationFactory factory) throws IOException {
+		AtomicLong count = new AtomicLong();
+		AtomicLong failed = new AtomicLong();
+		Thread[] runners = new Thread[threads];
+		long deadline = System.currentTimeMillis() + millis;
+		for (int i = 0; i < threads; i++) {
+			Operation op = factory.create();
+			runners[i] = new Thread(() -> {
+				long local = 0;
+				long localFailed = 0;
+				try (Operation closed = op) {
+					while (System.currentTimeMillis() < deadline) {
+						if (closed.run()) local++;
+						else localFailed++;
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				count.addAndGet(local);
+				failed.addAndGet(localFailed);
+			});
+		}
+		for (Thread runner : runners) runner.start();
+		for (Thread runner : runners) {
+			try {
+				runner.join();
+			} catch (InterruptedException ignored) {}
+		}
+		lost = failed.get();
+		return count.get() * 1000.0 / millis;
+	}
+
+	/**
+	 * Returns the number of operations lost during the last throughput measure.
+	 */
+	protected long lost() {
+		return lost;
+	}
+
+	/**
+	 * Prints a result line.
+	 *
+	 * @param fmt  the format to use
+	 * @param args arguments to the format string
+	 */
+	protected void report(String fmt, Object... args) {
+		System.out.printf("  " + fmt + "\n", args);
+	}
+}
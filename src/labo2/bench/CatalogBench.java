@@ -0,0 +1,89 @@
+package labo2.bench;
+
+import labo2.protocol.Message;
+import labo2.protocol.ServiceRegisterMessage;
+import labo2.protocol.ServiceRequestMessage;
+import labo2.resolver.Resolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * Measures SERVICE_REQUEST latency of a resolver depending on the number of
+ * service types in its catalog. Service ids are spread over the 32-bit range.
+ * The heartbeat is disabled: the registered instances have no agent and
+ * would otherwise be evicted during the measure.
+ */
+public class CatalogBench extends Benchmark {
+	private static final int[] SERVICES = { 2, 100, 10000, 100000 };
+	private static final int WARMUP = 20000;
+	private static final int SAMPLES = 20000;
+
+	public String name() { return "catalog"; }
+	protected String desc() { return "SERVICE_REQUEST latency by number of service types"; }
+
+	/**
+	 * Returns the id of the i-th service type.
+	 */
+	private static int id(int i) {
+		return i * 0x61C88647;
+	}
+
+	protected void execute() throws IOException {
+		System.setProperty("labo2.heartbeat.interval", "0");
+		Resolver resolver = Resolver.intantiate("0");
+		resolver.start();
+		resolver.sync();
+
+		try (DatagramSocket socket = new DatagramSocket(null)) {
+			socket.setSoTimeout(1000);
+			socket.connect(RESOLVERS[0]);
+			DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+			Random random = new Random(0);
+			int registered = 0;
+
+			for (int services : SERVICES) {
+				// Register one instance of every new service type
+				for (; registered < services; registered++) {
+					byte[] request = Message.serialize(new ServiceRegisterMessage(id(registered), 1));
+					roundTrip(socket, request, packet);
+				}
+
+				long[] latencies = new long[SAMPLES];
+				for (int i = -WARMUP; i < SAMPLES; i++) {
+					byte[] request = Message.serialize(new ServiceRequestMessage(id(random.nextInt(services))));
+					long start = System.nanoTime();
+					roundTrip(socket, request, packet);
+					if (i >= 0) latencies[i] = System.nanoTime() - start;
+				}
+				Arrays.sort(latencies);
+				report("services=%d: mean %.1f us, p50 %.1f us, p99 %.1f us", services,
+					Arrays.stream(latencies).average().orElse(0) / 1000.0,
+					latencies[SAMPLES / 2] / 1000.0, latencies[SAMPLES * 99 / 100] / 1000.0);
+			}
+		}
+
+		resolver.stop();
+		resolver.result();
+		System.clearProperty("labo2.heartbeat.interval");
+	}
+
+	/**
+	 * Sends a request and waits for its reply, sending it again on timeout.
+	 */
+	private static void roundTrip(DatagramSocket socket, byte[] request, DatagramPacket packet) throws IOException {
+		while (true) {
+			socket.send(new DatagramPacket(request, request.length));
+			try {
+				socket.receive(packet);
+				return;
+			} catch (SocketTimeoutException ignored) {}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package labo2.bench;
+
+import labo2.protocol.Codec;
+import labo2.protocol.Message;
+import labo2.protocol.ServiceOfferMessage;
+import labo2.protocol.ServiceOfferView;
+import labo2.protocol.ServiceRequestMessage;
+import labo2.protocol.ServiceRequestView;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the heap allocated per message by each way of encoding and
+ * decoding the hot message types.
+ * <p>
+ * Allocation is read from the per-thread counter of the JVM before and after
+ * a loop of round trips, once the loop has been warmed up and compiled.
+ */
+public class CodecBench extends Benchmark {
+	private static final int WARMUP = 2000000;
+	private static final int ITERATIONS = 1000000;
+
+	/**
+	 * Sum of the decoded values, kept so that decoding cannot be optimized away
+	 */
+	private long sink;
+
+	public String name() { return "codec"; }
+	protected String desc() { return "Bytes allocated per encode/decode round trip"; }
+
+	protected void execute() throws IOException {
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 4242);
+		ServiceRequestMessage request = new ServiceRequestMessage(42);
+		ServiceOfferMessage offer = new ServiceOfferMessage(true, address);
+		Codec codec = new Codec();
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		ServiceRequestView requestView = new ServiceRequestView();
+		ServiceOfferView offerView = new ServiceOfferView();
+		int ip = 0x7F000001;
+
+		measure("request, byte[] API", () -> {
+			byte[] data = Message.serialize(request);
+			return ((ServiceRequestMessage) Message.parse(data, 0, data.length)).service;
+		});
+		measure("request, codec", () -> {
+			buffer.clear();
+			codec.encode(request, buffer);
+			buffer.flip();
+			return ((ServiceRequestMessage) codec.decode(buffer)).service;
+		});
+		measure("request, view", () -> {
+			buffer.clear();
+			ServiceRequestView.write(buffer, 42);
+			buffer.flip();
+			return requestView.wrap(buffer).service();
+		});
+		measure("offer, byte[] API", () -> {
+			byte[] data = Message.serialize(offer);
+			return ((ServiceOfferMessage) Message.parse(data, 0, data.length)).address.getPort();
+		});
+		measure("offer, codec", () -> {
+			buffer.clear();
+			codec.encode(offer, buffer);
+			buffer.flip();
+			return ((ServiceOfferMessage) codec.decode(buffer)).address.getPort();
+		});
+		measure("offer, view", () -> {
+			buffer.clear();
+			ServiceOfferView.write(buffer, ip, 4242);
+			buffer.flip();
+			return offerView.wrap(buffer).port();
+		});
+	}
+
+	/**
+	 * A round trip returning a value of the decoded message.
+	 */
+	@FunctionalInterface
+	private interface RoundTrip {
+		int run() throws IOException;
+	}
+
+	/**
+	 * Runs a round trip in a loop and reports its allocation and latency.
+	 */
+	private void measure(String label, RoundTrip roundTrip) throws IOException {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		long sink = 0;
+		for (int i = 0; i < WARMUP; i++) sink += roundTrip.run();
+
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) sink += roundTrip.run();
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+		this.sink += sink;
+
+		report("%-20s %6.1f B/msg, %6.1f ns/msg", label + ":",
+			(double) allocated / ITERATIONS, (double) elapsed / ITERATIONS);
+	}
+}
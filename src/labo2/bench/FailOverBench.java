@@ -0,0 +1,56 @@
+package labo2.bench;
+
+import labo2.protocol.ResolverClient;
+import labo2.protocol.ResolverHealth;
+import labo2.resolver.Resolver;
+
+import java.io.IOException;
+
+/**
+ * Measures the latency of a resolution whose resolver has just stopped, as
+ * in FailOverTest: the client knows the resolver from a few resolutions,
+ * then has to time it out and fail over to the next one.
+ * <p>
+ * Each round uses a health table of its own, so that the breaker opened by
+ * a previous round does not skip the stopped resolver.
+ */
+public class FailOverBench extends Benchmark {
+	private static final int ROUNDS = 5;
+	private static final int WARMUP = 20;
+
+	public String name() { return "fail-over"; }
+	protected String desc() { return "Resolution latency when the current resolver stops"; }
+
+	protected void execute() throws IOException {
+		Resolver backup = Resolver.intantiate("1");
+		backup.start();
+		backup.sync();
+
+		long total = 0;
+		long max = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			Resolver resolver = Resolver.intantiate("0");
+			resolver.start();
+			resolver.sync();
+
+			try (ResolverClient client = ResolverClient.withNewSocket().withHealth(new ResolverHealth())) {
+				client.setResolverIndex(0).register(0, 1);
+				for (int i = 0; i < WARMUP; i++) {
+					client.setResolverIndex(0).resolve(0);
+				}
+				resolver.stop();
+				resolver.result();
+
+				long start = System.nanoTime();
+				client.resolve(0);
+				long elapsed = (System.nanoTime() - start) / 1000000;
+				total += elapsed;
+				max = Math.max(max, elapsed);
+			}
+		}
+		report("fail-over: %.1f ms average, %d ms max over %d rounds", (double) total / ROUNDS, max, ROUNDS);
+
+		backup.stop();
+		backup.result();
+	}
+}
@@ -0,0 +1,106 @@
+package labo2.bench;
+
+import labo2.protocol.Message;
+import labo2.protocol.ServiceRegisterMessage;
+import labo2.resolver.Resolver;
+import labo2.resolver.ServiceInstance;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * Measures the heap retained by a resolver holding a million instances,
+ * compared to a plain object-per-instance map of the same instances.
+ * <p>
+ * Instances are registered over UDP from SOCKETS sockets, each registering
+ * SERVICES service types one at a time. The heartbeat is disabled so that no agent is
+ * probed. The resolver figure includes its bounded mutation log.
+ */
+public class FootprintBench extends Benchmark {
+	private static final int SOCKETS = 1000;
+	private static final int SERVICES = 1000;
+	private static final int BASE_PORT = 40000;
+	private static final int INSTANCES = SOCKETS * SERVICES;
+
+	public String name() { return "footprint"; }
+	protected String desc() { return "Heap retained by 1M instances"; }
+
+	protected void execute() throws IOException {
+		long base = used();
+		Map<InetSocketAddress, ServiceInstance> objects = new HashMap<>();
+		for (int s = 0; s < SOCKETS; s++) {
+			for (int service = 0; service < SERVICES; service++) {
+				InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(
+					new byte[] { 127, 0, (byte) (s >>> 8), (byte) s }), 20000 + service);
+				objects.put(address, new ServiceInstance(service, address, 1));
+			}
+		}
+		long map = used() - base;
+		report("object per instance: %d instances, %.1f MB, %.0f bytes/instance",
+			objects.size(), map / 1e6, (double) map / objects.size());
+		objects = null;
+
+		System.setProperty("labo2.heartbeat.interval", "0");
+		base = used();
+		Resolver resolver = Resolver.intantiate("0");
+		resolver.start();
+		resolver.sync();
+
+		for (int s = 0; s < SOCKETS; s++) {
+			register(s);
+		}
+		long retained = used() - base;
+		report("resolver: %d instances, %.1f MB, %.0f bytes/instance",
+			resolver.size(), retained / 1e6, (double) retained / resolver.size());
+
+		resolver.stop();
+		resolver.result();
+		System.clearProperty("labo2.heartbeat.interval");
+	}
+
+	/**
+	 * Registers every service type from a new socket, waiting for each reply
+	 * and sending the request again on timeout. Sockets are bound to distinct
+	 * ports, so that every socket registers distinct instances.
+	 */
+	private static void register(int index) throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(
+			new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + index))) {
+			socket.setSoTimeout(100);
+			socket.connect(RESOLVERS[0]);
+			DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+			for (int service = 0; service < SERVICES; service++) {
+				byte[] request = Message.serialize(new ServiceRegisterMessage(service, index));
+				while (true) {
+					socket.send(new DatagramPacket(request, request.length));
+					try {
+						socket.receive(packet);
+						break;
+					} catch (SocketTimeoutException ignored) {}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the heap in use after garbage collection.
+	 */
+	private static long used() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ignored) {}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,70 @@
+package labo2.bench;
+
+import labo2.protocol.Message;
+import labo2.protocol.ServiceRegisterMessage;
+import labo2.resolver.Resolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * Measures SERVICE_REGISTER throughput of a resolver replicating to a peer,
+ * in best-effort and in reliable replication mode.
+ * <p>
+ * Every registration is a new instance: each client socket registers a new
+ * service id per request, since registering a known instance again is not a
+ * mutation and is not replicated. The heartbeat is disabled so that no agent
+ * is probed and no eviction is replicated during the measure.
+ */
+public class ReplicationBench extends Benchmark {
+	private static final boolean[] RELIABLE = { false, true };
+	private static final int CLIENTS = 16;
+	private static final long DURATION = 2000;
+
+	public String name() { return "replication"; }
+	protected String desc() { return "SERVICE_REGISTER throughput by replication mode"; }
+
+	protected void execute() throws IOException {
+		System.setProperty("labo2.heartbeat.interval", "0");
+		for (boolean reliable : RELIABLE) {
+			System.setProperty("labo2.replication.reliable", String.valueOf(reliable));
+			Resolver primary = Resolver.intantiate("0");
+			primary.start();
+			primary.sync();
+			Resolver replica = Resolver.intantiate("1");
+			replica.start();
+			replica.sync();
+
+			double rate = throughput(CLIENTS, DURATION, () -> {
+				DatagramSocket socket = new DatagramSocket(null);
+				socket.setSoTimeout(100);
+				socket.connect(RESOLVERS[0]);
+				DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+				int[] service = { 0 };
+				return closing(socket, () -> {
+					byte[] request = Message.serialize(new ServiceRegisterMessage(service[0]++, 1));
+					socket.send(new DatagramPacket(request, request.length));
+					try {
+						socket.receive(packet);
+						return true;
+					} catch (SocketTimeoutException e) {
+						return false;
+					}
+				});
+			});
+			report("reliable=%b clients=%d: %.0f reg/s, %d lost, %d instances replicated", reliable, CLIENTS, rate,
+				lost(), replica.size());
+
+			replica.stop();
+			replica.result();
+			primary.stop();
+			primary.result();
+		}
+		System.clearProperty("labo2.replication.reliable");
+		System.clearProperty("labo2.heartbeat.interval");
+	}
+}
@@ -0,0 +1,95 @@
+package labo2.bench;
+
+import labo2.protocol.Message;
+import labo2.protocol.ResolverClient;
+import labo2.protocol.ServiceOfferView;
+import labo2.protocol.ServiceRequestMessage;
+import labo2.resolver.Resolver;
+
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * Measures SERVICE_REQUEST throughput of a single resolver depending on
+ * the number of workers serving its port.
+ * <p>
+ * Throughput on a loaded machine is dominated by the kernel, the CPU time and
+ * heap allocated by the resolver per request are thus reported as well. They
+ * are read from the counters of the threads that exist before the clients
+ * start, that is the resolver threads plus the mostly idle launcher.
+ * <p>
+ * The resolved instance has no agent, the heartbeat is thus disabled so that
+ * it is not evicted. Requests answered with an unavailable offer are counted
+ * as lost.
+ */
+public class ResolveThroughputBench extends Benchmark {
+	private static final int[] WORKERS = { 1, 2, 4 };
+	private static final int CLIENTS = 16;
+	private static final long DURATION = 2000;
+
+	public String name() { return "resolve-throughput"; }
+	protected String desc() { return "SERVICE_REQUEST throughput by worker count"; }
+
+	protected void execute() throws IOException {
+		System.setProperty("labo2.heartbeat.interval", "0");
+		byte[] request = Message.serialize(new ServiceRequestMessage(0));
+		for (int workers : WORKERS) {
+			Resolver resolver = Resolver.intantiate("0", String.valueOf(workers));
+			resolver.start();
+			resolver.sync();
+
+			try (ResolverClient client = ResolverClient.withNewSocket()) {
+				client.setResolverIndex(0).register(0, 1);
+				ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+				long[] ids = threads.getAllThreadIds();
+				long cpu = sum(threads, ids, false);
+				long allocated = sum(threads, ids, true);
+				double rate = throughput(CLIENTS, DURATION, () -> {
+					DatagramSocket socket = new DatagramSocket(null);
+					socket.setSoTimeout(100);
+					socket.connect(RESOLVERS[0]);
+					DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+					ServiceOfferView offer = new ServiceOfferView();
+					return closing(socket, () -> {
+						socket.send(new DatagramPacket(request, request.length));
+						try {
+							socket.receive(packet);
+							return offer.wrap(ByteBuffer.wrap(packet.getData(), 0, packet.getLength())).available();
+						} catch (SocketTimeoutException e) {
+							return false;
+						}
+					});
+				});
+				double requests = rate * DURATION / 1000;
+				cpu = sum(threads, ids, false) - cpu;
+				allocated = sum(threads, ids, true) - allocated;
+				report("workers=%d clients=%d: %.0f req/s, %d lost, resolver %.2f us CPU/req, %.0f B/req", workers, CLIENTS,
+					rate, lost(), cpu / 1000.0 / requests, allocated / requests);
+			}
+
+			resolver.stop();
+			resolver.result();
+		}
+		System.clearProperty("labo2.heartbeat.interval");
+	}
+
+	/**
+	 * Sums the CPU time or allocated bytes of the given threads that are still alive.
+	 */
+	private static long sum(ThreadMXBean threads, long[] ids, boolean allocated) {
+		long total = 0;
+		for (long id : ids) {
+			long value = allocated ? threads.getThreadAllocatedBytes(id) : threads.getThreadCpuTime(id);
+			if (value > 0) total += value;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,47 @@
+package labo2.client;
+
+import labo2.protocol.AsyncResolverClient;
+import labo2.services.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tests the asynchronous client.
+ *
+ * Many resolutions of the Time service are sent at once over a single
+ * client. Every one of them must complete, and both Time services must be
+ * offered. Shares are only roughly equal: datagrams dropped by a full
+ * socket buffer are retried on another resolver, with its own rotation.
+ */
+public class AsyncTest extends TestClient {
+	private static final int REQUESTS = 1000;
+
+	protected String name() { return "async-test"; }
+	protected String desc() { return "Testing pipelined asynchronous client"; }
+
+	protected void execute() throws IOException {
+		try (AsyncResolverClient async = AsyncResolverClient.open()) {
+			List<CompletableFuture<InetSocketAddress>> futures = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				futures.add(async.resolve(Time.SERVICE_ID));
+			}
+
+			Map<InetSocketAddress, Integer> counts = new HashMap<>();
+			for (CompletableFuture<InetSocketAddress> future : futures) {
+				counts.merge(future.join(), 1, Integer::sum);
+			}
+			log.printf("offers = %s\n", counts);
+			require(counts.size() == 2);
+			for (int count : counts.values()) {
+				require(count >= REQUESTS / 4);
+			}
+			require(async.pending() == 0);
+		}
+	}
+}
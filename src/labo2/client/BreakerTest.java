@@ -0,0 +1,55 @@
+package labo2.client;
+
+import labo2.protocol.Protocol;
+import labo2.protocol.ResolverClient;
+import labo2.protocol.ResolverHealth;
+import labo2.services.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Tests the resolver health table.
+ *
+ * Once a stopped resolver has timed out twice, its breaker must be open and
+ * a new client must skip it without waiting for its timeout. Once restarted,
+ * the background probes must close its breaker.
+ */
+public class BreakerTest extends TestClient {
+	protected String name() { return "breaker-test"; }
+	protected String desc() { return "Testing resolver circuit breaker"; }
+
+	protected void execute() throws IOException {
+		ResolverHealth health = new ResolverHealth();
+		InetSocketAddress down = Protocol.RESOLVERS[0];
+
+		ctx.stopResolver(0);
+		try (ResolverClient seeds = ResolverClient.withNewSocket().withLogger(log).withHealth(health)) {
+			// The test client refreshes its resolvers list, which no longer
+			// holds the stopped resolver: query the seeds instead
+			for (int i = 0; i < ResolverHealth.FAILURE_THRESHOLD; i++) {
+				seeds.setResolverIndex(0);
+				require(seeds.resolve(Time.SERVICE_ID) != null);
+			}
+			log.printf("breaker of %s is %s\n", down, health.state(down));
+			require(health.state(down) == ResolverHealth.State.OPEN);
+
+			try (ResolverClient fresh = ResolverClient.withNewSocket().withLogger(log).withHealth(health)) {
+				long start = System.currentTimeMillis();
+				fresh.setResolverIndex(0);
+				require(fresh.resolve(Time.SERVICE_ID) != null);
+				long elapsed = System.currentTimeMillis() - start;
+				log.printf("resolved in %d ms\n", elapsed);
+				require(elapsed < ResolverClient.DEFAULT_TIMEOUT / 2);
+			}
+		} finally {
+			ctx.startResolver(0);
+		}
+
+		for (int i = 0; i < 5 && health.state(down) != ResolverHealth.State.CLOSED; i++) {
+			ctx.sleep(ResolverHealth.PROBE_INTERVAL);
+		}
+		log.printf("breaker of %s is %s\n", down, health.state(down));
+		require(health.state(down) == ResolverHealth.State.CLOSED);
+	}
+}
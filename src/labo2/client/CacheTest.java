@@ -0,0 +1,50 @@
+package labo2.client;
+
+import labo2.protocol.ResolverClient;
+import labo2.services.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests the client resolutions cache.
+ *
+ * The cache must learn both Time services, then keep rotating through them
+ * while every resolver is down. A second client resolving the same service
+ * in lockstep must not pin the first one to a subset of the instances.
+ */
+public class CacheTest extends TestClient {
+	protected String name() { return "cache-test"; }
+	protected String desc() { return "Testing client resolutions cache"; }
+
+	protected void execute() throws IOException {
+		try (ResolverClient cached = ResolverClient.withNewSocket().withLogger(log).withCache(60000);
+		     ResolverClient other = ResolverClient.withNewSocket().withLogger(log).withCache(60000)) {
+			// Interleave resolutions of both clients: with two instances, each
+			// of them alone would only ever be offered the same one
+			Set<InetSocketAddress> seen = new HashSet<>();
+			Set<InetSocketAddress> otherSeen = new HashSet<>();
+			InetSocketAddress first = cached.resolve(Time.SERVICE_ID);
+			otherSeen.add(other.resolve(Time.SERVICE_ID));
+			InetSocketAddress second = cached.resolve(Time.SERVICE_ID);
+			otherSeen.add(other.resolve(Time.SERVICE_ID));
+			InetSocketAddress third = cached.resolve(Time.SERVICE_ID);
+			seen.add(first);
+			seen.add(second);
+			log.printf("first = %s ; second = %s ; third = %s ; other = %s\n", first, second, third, otherSeen);
+			require(seen.size() == 2);
+			require(otherSeen.equals(seen));
+			require(first.equals(third));
+
+			ctx.stopResolver(0, 1, 2);
+			try {
+				require(second.equals(cached.resolve(Time.SERVICE_ID)));
+				require(first.equals(cached.resolve(Time.SERVICE_ID)));
+			} finally {
+				ctx.startResolver(0, 1, 2);
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package labo2.client;
+
+import labo2.services.Echo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Tests the restart of every resolver at once.
+ *
+ * With no peer to synchronize with, restarted resolvers must load their
+ * directory from their persistent store. This test requires persistence to
+ * be enabled by the test launcher.
+ */
+public class ColdRestartTest extends TestClient {
+	protected String name() { return "cold-restart-test"; }
+	protected String desc() { return "Testing Resolver cold restart"; }
+
+	protected void execute() throws IOException {
+		InetSocketAddress first = client.resolve(Echo.SERVICE_ID);
+		log.printf("first = %s\n", first);
+
+		ctx.stopResolver(0, 1, 2);
+		ctx.startResolver(0, 1, 2);
+
+		InetSocketAddress second = client.resolve(Echo.SERVICE_ID);
+		log.printf("second = %s\n", second);
+
+		require(first.equals(second));
+	}
+}
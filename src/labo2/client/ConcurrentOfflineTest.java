@@ -0,0 +1,94 @@
+package labo2.client;
+
+import labo2.protocol.Message;
+import labo2.protocol.MessageType;
+import labo2.protocol.ResolverClient;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests concurrent offline notifications for the same instance.
+ *
+ * An instance whose agent never answers is registered, then many clients
+ * report it offline to the same resolver at the same time. Every client must
+ * receive the same verdict, and the agent must have been pinged only once
+ * by each resolver: concurrent reports share a single probe. Resolvers the
+ * instance is replicated to ping it on their own for their heartbeat.
+ */
+public class ConcurrentOfflineTest extends TestClient {
+	private static final int CLIENTS = 8;
+
+	/**
+	 * Service id of the instance, not served by any default service
+	 */
+	private static final int SERVICE_ID = 1000;
+
+	protected String name() { return "conc-off-test"; }
+	protected String desc() { return "Testing concurrent offline notifications"; }
+
+	protected void execute() throws IOException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (DatagramSocket service = new DatagramSocket(0, loopback);
+		     DatagramSocket agent = new DatagramSocket(0, loopback)) {
+			require(ResolverClient.using(service).setResolverIndex(0).register(SERVICE_ID, agent.getLocalPort()));
+			InetSocketAddress address = new InetSocketAddress(loopback, service.getLocalPort());
+			log.printf("address = %s\n", address);
+
+			// The agent counts pings by prober and never answers
+			Map<SocketAddress, Integer> pings = new ConcurrentHashMap<>();
+			Thread listener = new Thread(() -> {
+				DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+				try {
+					agent.setSoTimeout(100);
+					while (!agent.isClosed()) {
+						try {
+							agent.receive(packet);
+						} catch (SocketTimeoutException e) {
+							continue;
+						}
+						Message message = Message.parse(packet.getData(), packet.getOffset(), packet.getLength());
+						if (message.type() == MessageType.SERVICE_PING) pings.merge(packet.getSocketAddress(), 1, Integer::sum);
+					}
+				} catch (IOException closed) {
+					// The test is over
+				}
+			});
+			listener.start();
+
+			AtomicInteger retries = new AtomicInteger();
+			AtomicInteger answers = new AtomicInteger();
+			Thread[] threads = new Thread[CLIENTS];
+			for (int i = 0; i < CLIENTS; i++) {
+				threads[i] = new Thread(() -> {
+					try (ResolverClient c = ResolverClient.withNewSocket().setResolverIndex(0)) {
+						if (c.offline(SERVICE_ID, address)) retries.incrementAndGet();
+						answers.incrementAndGet();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				});
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException ignored) {}
+			}
+
+			log.printf("answers = %d ; retries = %d ; pings = %s\n", answers.get(), retries.get(), pings);
+			require(answers.get() == CLIENTS);
+			require(retries.get() == 0);
+			require(!pings.isEmpty());
+			for (int count : pings.values()) require(count == 1);
+		}
+	}
+}
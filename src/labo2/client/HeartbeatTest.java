@@ -0,0 +1,35 @@
+package labo2.client;
+
+import labo2.services.Echo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Tests the eviction of dead instances by the resolver heartbeat.
+ *
+ * The Echo service is stopped without any client reporting it offline. Once
+ * the heartbeat had time to probe it, resolving the service must fail.
+ * This test requires the heartbeat interval to be set to a short value by
+ * the test launcher.
+ */
+public class HeartbeatTest extends TestClient {
+	protected String name() { return "heartbeat-test"; }
+	protected String desc() { return "Testing Resolver heartbeat"; }
+
+	protected void execute() throws IOException {
+		InetSocketAddress address = client.resolve(Echo.SERVICE_ID);
+		log.printf("address = %s\n", address);
+		require(address != null);
+
+		ctx.stopService(0);
+		ctx.sleep(2500);
+
+		InetSocketAddress evicted = client.resolve(Echo.SERVICE_ID);
+		log.printf("evicted = %s\n", evicted);
+		require(evicted == null);
+
+		ctx.startService(0, Echo::instantiate, "echo:1");
+		ctx.sleep(100);
+	}
+}
@@ -0,0 +1,44 @@
+package labo2.client;
+
+import labo2.protocol.ResolverClient;
+import labo2.services.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Tests hedged resolutions.
+ *
+ * Once the round-trip times are known, a resolution sent to a stopped
+ * resolver must be answered by the next one well before the timeout.
+ */
+public class HedgingTest extends TestClient {
+	private static final int WARMUP = 64;
+
+	protected String name() { return "hedging-test"; }
+	protected String desc() { return "Testing hedged resolutions"; }
+
+	protected void execute() throws IOException {
+		try (ResolverClient hedged = ResolverClient.withNewSocket().withHedging(0.95, 0.1)) {
+			hedged.setResolverIndex(0);
+			for (int i = 0; i < WARMUP; i++) {
+				require(hedged.resolve(Time.SERVICE_ID) != null);
+			}
+			log.printf("hedge delay = %d ms\n", hedged.getHedgeDelay());
+			require(hedged.getHedgeDelay() > 0);
+
+			ctx.stopResolver(0);
+			try {
+				long start = System.currentTimeMillis();
+				InetSocketAddress address = hedged.withLogger(log).resolve(Time.SERVICE_ID);
+				long elapsed = System.currentTimeMillis() - start;
+				log.printf("resolved %s in %d ms\n", address, elapsed);
+				require(address != null);
+				require(elapsed < ResolverClient.DEFAULT_TIMEOUT / 2);
+				require(hedged.getResolverIndex() != 0);
+			} finally {
+				ctx.startResolver(0);
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package labo2.client;
+
+import labo2.protocol.AsyncResolverClient;
+import labo2.services.Echo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+/**
+ * Tests that a resolver joining at runtime is learned by clients, both
+ * synchronous and asynchronous, and takes over when every seed resolver
+ * is down.
+ */
+public class MembershipTest extends TestClient {
+	protected String name() { return "membership-test"; }
+	protected String desc() { return "Testing dynamic Resolver membership"; }
+
+	protected void execute() throws IOException {
+		ctx.startResolver(3);
+		ctx.sleep(1000);
+
+		client.refresh();
+		log.printf("resolvers = %s\n", client.getResolvers());
+		require(client.getResolvers().size() == 4);
+
+		try (AsyncResolverClient async = AsyncResolverClient.open().withLogger(log)) {
+			List<InetSocketAddress> resolvers = async.refresh().join();
+			log.printf("async resolvers = %s\n", resolvers);
+			require(resolvers.size() == 4);
+
+			ctx.stopResolver(0, 1, 2);
+			require(client.resolve(Echo.SERVICE_ID) != null);
+			require(async.resolve(Echo.SERVICE_ID).join() != null);
+		}
+
+		ctx.startResolver(0, 1, 2);
+		ctx.stopResolver(3);
+	}
+}
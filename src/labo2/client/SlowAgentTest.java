@@ -0,0 +1,108 @@
+package labo2.client;
+
+import labo2.protocol.Message;
+import labo2.protocol.MessageType;
+import labo2.protocol.ResolverClient;
+import labo2.protocol.SimpleMessage;
+import labo2.resolver.Resolver;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that the heartbeat does not evict a slow but alive instance.
+ *
+ * An instance is registered whose agent answers its first pings immediately,
+ * then only after a delay, with one longer stall. The failure detector learns
+ * a short round-trip time first, the later replies must nevertheless not be
+ * taken for a crash: after several heartbeat rounds, the instance must still
+ * be known to every resolver. This test requires the heartbeat interval to be
+ * set to a short value by the test launcher.
+ */
+public class SlowAgentTest extends TestClient {
+	/**
+	 * Service id of the instance, not served by any default service
+	 */
+	private static final int SERVICE_ID = 1001;
+
+	/**
+	 * Number of pings answered immediately by the agent
+	 */
+	private static final int FAST_PINGS = 3;
+
+	/**
+	 * Reply delay of the agent after the first pings, and of its stall
+	 */
+	private static final long DELAY = 100;
+	private static final long STALL = 300;
+
+	protected String name() { return "slow-agent-test"; }
+	protected String desc() { return "Testing heartbeat with a slow agent"; }
+
+	protected void execute() throws IOException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+		try (DatagramSocket service = new DatagramSocket(0, loopback);
+		     DatagramSocket agent = new DatagramSocket(0, loopback)) {
+			require(ResolverClient.using(service).setResolverIndex(0).register(SERVICE_ID, agent.getLocalPort()));
+			InetSocketAddress address = new InetSocketAddress(loopback, service.getLocalPort());
+			log.printf("address = %s\n", address);
+
+			// The agent answers every prober, later and later
+			byte[] pong = Message.serialize(SimpleMessage.ofType(MessageType.SERVICE_PONG));
+			Map<SocketAddress, Integer> pings = new ConcurrentHashMap<>();
+			Thread listener = new Thread(() -> {
+				DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+				try {
+					agent.setSoTimeout(100);
+					while (!agent.isClosed()) {
+						try {
+							agent.receive(packet);
+						} catch (SocketTimeoutException e) {
+							continue;
+						}
+						Message message = Message.parse(packet.getData(), packet.getOffset(), packet.getLength());
+						if (message.type() != MessageType.SERVICE_PING) continue;
+						SocketAddress prober = packet.getSocketAddress();
+						int count = pings.merge(prober, 1, Integer::sum);
+						long delay = (count <= FAST_PINGS) ? 0 : (count == FAST_PINGS + 2) ? STALL : DELAY;
+						scheduler.schedule(() -> {
+							try {
+								agent.send(new DatagramPacket(pong, pong.length, prober));
+							} catch (IOException closed) {
+								// The test is over
+							}
+						}, delay, TimeUnit.MILLISECONDS);
+					}
+				} catch (IOException closed) {
+					// The test is over
+				}
+			});
+			listener.start();
+
+			ctx.sleep(5000);
+
+			log.printf("pings = %s\n", pings);
+			require(!pings.isEmpty());
+			for (int count : pings.values()) require(count > FAST_PINGS + 2);
+			for (Resolver resolver : ctx.resolvers) {
+				if (resolver == null) continue;
+				double suspicion = resolver.suspicion(SERVICE_ID, address);
+				log.printf("suspicion = %.2f\n", suspicion);
+				require(!Double.isNaN(suspicion));
+			}
+		} finally {
+			scheduler.shutdownNow();
+		}
+	}
+}
@@ -28,7 +28,7 @@ public abstract class TestClient extends Task<Boolean> {
 	protected final void run() throws IOException {
 		log = Logger.getLogger(name());
 		log.printf("===[[ %s ]]===\n", desc());
-		try (ResolverClient client = ResolverClient.withNewSocket().withLogger(log)) {
+		try (ResolverClient client = ResolverClient.withNewSocket().withLogger(log).withRefresh()) {
 			this.client = client;
 			execute();
 		} catch (Throwable fail) {
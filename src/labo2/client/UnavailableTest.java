@@ -0,0 +1,50 @@
+package labo2.client;
+
+import labo2.protocol.AsyncResolverClient;
+import labo2.services.Time;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tests the asynchronous client while every resolver is down.
+ *
+ * Every attempt times out, and every timeout asks for a refresh of the
+ * resolvers list. At most one refresh must be in flight at once, so that
+ * refreshes do not take the slots of the requests. Every request must then
+ * fail once every seed has been tried.
+ */
+public class UnavailableTest extends TestClient {
+	private static final int REQUESTS = 5;
+
+	protected String name() { return "unavailable-test"; }
+	protected String desc() { return "Testing asynchronous client without resolvers"; }
+
+	protected void execute() throws IOException {
+		ctx.stopResolver(0, 1, 2, 3);
+		try (AsyncResolverClient async = AsyncResolverClient.open()) {
+			List<CompletableFuture<InetSocketAddress>> futures = new ArrayList<>();
+			for (int i = 0; i < REQUESTS; i++) {
+				futures.add(async.resolve(Time.SERVICE_ID));
+			}
+
+			int max = 0;
+			for (int i = 0; i < 30; i++) {
+				ctx.sleep(100);
+				max = Math.max(max, async.pending());
+			}
+			log.printf("pending = %d at most\n", max);
+			require(max <= REQUESTS + 1);
+
+			for (CompletableFuture<InetSocketAddress> future : futures) {
+				future.handle((address, failure) -> null).join();
+				require(future.isCompletedExceptionally());
+			}
+		} finally {
+			ctx.startResolver(0, 1, 2);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package labo2.client;
+
+import labo2.protocol.ListSyncResult;
+import labo2.protocol.Protocol;
+import labo2.protocol.ResolverClient;
+import labo2.services.Echo;
+
+import java.io.IOException;
+
+/**
+ * Tests that resolvers serve clients of both wire format versions.
+ *
+ * A version 2 client resolves a service, refreshes its resolvers list and
+ * synchronizes the list, which a resolver sends as a single envelope. The
+ * result must match what the version 1 client gets.
+ */
+public class WireVersionTest extends TestClient {
+	protected String name() { return "wire-version-test"; }
+	protected String desc() { return "Testing wire format versions interoperability"; }
+
+	protected void execute() throws IOException {
+		try (ResolverClient v2 = ResolverClient.withNewSocket().withLogger(log).withVersion(Protocol.V2)) {
+			require(v2.resolve(Echo.SERVICE_ID) != null);
+
+			v2.refresh();
+			client.refresh();
+			log.printf("resolvers = %s\n", v2.getResolvers());
+			require(v2.getResolvers().size() == client.getResolvers().size());
+
+			v2.setResolverIndex(0);
+			client.setResolverIndex(0);
+			ListSyncResult expected = client.sync();
+			ListSyncResult actual = v2.sync();
+			log.printf("entries: v1 = %d ; v2 = %d\n", expected.entries.size(), actual.entries.size());
+			require(actual.entries.size() == expected.entries.size());
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -10,15 +8,30 @@ import java.net.InetSocketAddress;
  * Shares serializers
  */
 abstract class AdresseEncoder {
-	static void serialize(DataOutputStream output, InetSocketAddress address) throws IOException {
+	static void serialize(WireOutput output, InetSocketAddress address) throws IOException {
 		output.write(address.getAddress().getAddress());
-		output.writeInt(address.getPort());
+		output.writePort(address.getPort());
 	}
 
-	static InetSocketAddress unserialize(DataInputStream input) throws IOException {
+	static InetSocketAddress unserialize(WireInput input) throws IOException {
 		byte[] address = new byte[4];
-		input.read(address);
-		int port = input.readInt();
+		input.readFully(address);
+		int port = input.readPort();
 		return new InetSocketAddress(InetAddress.getByAddress(address), port);
 	}
+
+	static void serializeClock(WireOutput output, long[] clock) throws IOException {
+		output.writeByte(clock.length);
+		for (long counter : clock) {
+			output.writeCounter(counter);
+		}
+	}
+
+	static long[] unserializeClock(WireInput input) throws IOException {
+		long[] clock = new long[input.readUnsignedByte()];
+		for (int i = 0; i < clock.length; i++) {
+			clock[i] = input.readCounter();
+		}
+		return clock;
+	}
 }
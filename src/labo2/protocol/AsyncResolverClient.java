@@ -0,0 +1,572 @@
+package labo2.protocol;
+
+import labo2.utils.Logger;
+import labo2.utils.TimerWheel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * An asynchronous client for the Resolver API.
+ * <p>
+ * Requests are sent in version 2 frames tagged with a correlation id, which
+ * resolvers echo in their reply. Many requests can thus be in flight at once
+ * over a single channel: a reader thread receives every reply and completes
+ * the future of the matching request. A reply to a request that already
+ * completed or failed is dropped, it is never taken for the reply of another
+ * request. At most MAX_IN_FLIGHT requests are sent at once, so that a burst
+ * does not overflow the receive buffer of a resolver: further requests wait
+ * for a reply, or a failure, to free a slot.
+ * <p>
+ * Timeouts are tracked in a timer wheel advanced by the reader thread. On
+ * timeout, a request is sent again to the next resolver, with the same id,
+ * until every known resolver has been tried once; its future then fails
+ * with a ResolverClientException. Outcomes are recorded in the shared
+ * ResolverHealth table, from which the first resolver to query is picked.
+ * Timeouts of each attempt are derived from the round-trip times of its
+ * resolver, as computed by the table, except for requests made with
+ * request(), which use the given timeout.
+ * <p>
+ * Initially, the known resolvers are the seeds of Protocol.RESOLVERS. The
+ * reader thread replaces them by the live members of the resolvers group
+ * right away, then every REFRESH_INTERVAL and after every fail-over. Should
+ * every known resolver fail, the seeds are tried again.
+ * <p>
+ * This class is thread-safe. Futures are completed on the reader thread,
+ * dependent actions should not block or should use the async variants.
+ * Should the channel fail, the client is closed: pending requests fail with
+ * the error of the channel, and so do later requests.
+ */
+public class AsyncResolverClient implements AutoCloseable {
+	/**
+	 * Default timeout of each attempt: 1 sec.
+	 */
+	public static final int DEFAULT_TIMEOUT = ResolverClient.DEFAULT_TIMEOUT;
+
+	/**
+	 * Time between two automatic refreshes of the resolvers list.
+	 */
+	public static final long REFRESH_INTERVAL = ResolverClient.REFRESH_INTERVAL;
+
+	/**
+	 * Timeout of requests whose attempts time out after the round-trip time
+	 * of each resolver.
+	 */
+	private static final int ADAPTIVE = 0;
+
+	/**
+	 * Maximum number of requests sent and waiting for their reply.
+	 */
+	public static final int MAX_IN_FLIGHT = 128;
+
+	/**
+	 * Resolution of the timeouts, in milliseconds.
+	 */
+	private static final long TICK = 10;
+
+	/**
+	 * Number of slots of the timer wheel, covering a few seconds of timeouts.
+	 */
+	private static final int WHEEL_SIZE = 512;
+
+	/**
+	 * The seed resolvers
+	 */
+	private static final List<InetSocketAddress> SEEDS = Collections.unmodifiableList(Arrays.asList(RESOLVERS));
+
+	/**
+	 * A request waiting for its reply.
+	 */
+	private static class Pending {
+		final int id;
+		final Message message;
+		final byte[] data;
+		final int timeout;
+		final int delay;
+		final boolean refresh;
+		final CompletableFuture<Message> future = new CompletableFuture<>();
+
+		/**
+		 * Resolvers to try, index of the resolver of the current attempt and
+		 * number of attempts made, only used by the thread sending the request
+		 * then by the reader thread
+		 */
+		List<InetSocketAddress> resolvers;
+		int resolver;
+		int attempts = 0;
+
+		/**
+		 * Resolver and time at which the current attempt was sent, in
+		 * nanoseconds, and whether an earlier attempt was sent
+		 */
+		volatile InetSocketAddress target;
+		volatile long sent;
+		volatile boolean retransmitted;
+
+		/**
+		 * Timeout of the current attempt
+		 */
+		volatile TimerWheel.Timeout<Pending> expiry;
+
+		Pending(int id, Message message, byte[] data, int timeout, int delay, boolean refresh, List<InetSocketAddress> resolvers, int resolver) {
+			this.id = id;
+			this.message = message;
+			this.data = data;
+			this.timeout = timeout;
+			this.delay = delay;
+			this.refresh = refresh;
+			this.resolvers = resolvers;
+			this.resolver = resolver;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+
+	/**
+	 * Receive buffer and codec, only used by the reader thread
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(Protocol.MTU);
+	private final Codec codec = new Codec();
+
+	/**
+	 * Requests waiting for their reply, sent or not, by correlation id
+	 */
+	private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * Requests waiting for a slot to be sent, and number of requests sent
+	 * waiting for their reply
+	 */
+	private final Queue<Pending> waiting = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Next correlation id
+	 */
+	private final AtomicInteger ids = new AtomicInteger();
+
+	/**
+	 * Timeouts of the pending requests
+	 */
+	private final TimerWheel<Pending> wheel = new TimerWheel<>(TICK, WHEEL_SIZE, System.currentTimeMillis());
+
+	/**
+	 * The known resolvers, and index of the resolver to query first, the last
+	 * one to have answered
+	 */
+	private volatile List<InetSocketAddress> resolvers = SEEDS;
+	private volatile int resolverIndex;
+
+	/**
+	 * Time of the last refresh of the resolvers list, 0 to refresh on the
+	 * next reader iteration
+	 */
+	private volatile long lastRefresh = 0;
+
+	/**
+	 * The refresh in progress, if any: a single refresh is in flight at once
+	 */
+	private volatile CompletableFuture<List<InetSocketAddress>> refreshing;
+
+	/**
+	 * The health of the resolvers
+	 */
+	private final ResolverHealth health = ResolverHealth.shared();
+
+	/**
+	 * The logger to use, if any.
+	 */
+	private volatile Logger logger;
+
+	/**
+	 * The error which stopped the reader thread, if any
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Creates a new asynchronous client using a new channel.
+	 * The client must be closed by a call to close() once no longer useful.
+	 *
+	 * @return a new client instance
+	 * @throws IOException
+	 */
+	public static AsyncResolverClient open() throws IOException {
+		return new AsyncResolverClient(DatagramChannel.open());
+	}
+
+	/**
+	 * Constructor, starts the reader thread.
+	 *
+	 * @param channel the channel to use for communication with the resolvers
+	 * @throws IOException
+	 */
+	private AsyncResolverClient(DatagramChannel channel) throws IOException {
+		this.channel = channel;
+		this.resolverIndex = health.pick(SEEDS, new Random().nextInt(SEEDS.size()));
+		channel.bind(null);
+		channel.configureBlocking(false);
+		this.selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		Thread reader = new Thread(this::read, "resolver-client-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Sets the logger instance to use.
+	 * If set to null, logging is disabled in this client.
+	 *
+	 * @param logger the logger instance
+	 * @return this object
+	 */
+	public AsyncResolverClient withLogger(Logger logger) {
+		this.logger = logger;
+		return this;
+	}
+
+	/**
+	 * Sets the index of the resolver to query first.
+	 *
+	 * @param index the index of the resolver among the known resolvers
+	 * @return this object
+	 */
+	public AsyncResolverClient setResolverIndex(int index) {
+		this.resolverIndex = index % resolvers.size();
+		return this;
+	}
+
+	/**
+	 * Returns the known resolvers.
+	 *
+	 * @return the resolver addresses
+	 */
+	public List<InetSocketAddress> getResolvers() {
+		return Collections.unmodifiableList(resolvers);
+	}
+
+	/**
+	 * Replaces the known resolvers by the live members of the resolvers group,
+	 * as seen by the resolver answering. The resolver to query first is kept
+	 * if it is still a member. While a refresh is in progress, its future is
+	 * returned instead of sending another request.
+	 *
+	 * @return a future completed with the new resolvers list, or failed with a
+	 * ResolverClientException if no resolver answered
+	 */
+	public synchronized CompletableFuture<List<InetSocketAddress>> refresh() {
+		if (refreshing != null && !refreshing.isDone()) return refreshing;
+		lastRefresh = System.currentTimeMillis();
+		refreshing = request(SimpleMessage.ofType(MessageType.MEMBERS_REQUEST), ADAPTIVE, 0, true).thenApply(response -> {
+			List<MembersMessage.Member> members = ((MembersMessage) response).members;
+			List<InetSocketAddress> addresses = new ArrayList<>(members.size());
+			for (MembersMessage.Member member : members) {
+				addresses.add(member.address);
+			}
+			if (addresses.isEmpty()) return resolvers;
+
+			List<InetSocketAddress> known = resolvers;
+			int index = addresses.indexOf(known.get(resolverIndex % known.size()));
+			resolverIndex = (index >= 0) ? index : health.pick(addresses, new Random().nextInt(addresses.size()));
+			resolvers = addresses;
+			lastRefresh = System.currentTimeMillis();
+			Logger logger = this.logger;
+			if (logger != null) logger.printf("Refreshed resolvers list: %s\n", addresses);
+			return addresses;
+		});
+		return refreshing;
+	}
+
+	/**
+	 * Sends a generic request to the resolvers.
+	 *
+	 * @param message the request message
+	 * @param timeout the timeout of each attempt, in milliseconds
+	 * @return a future completed with the response message, or failed with a
+	 * ResolverClientException if no resolver answered
+	 */
+	public CompletableFuture<Message> request(Message message, int timeout) {
+		return request(message, timeout, 0, false);
+	}
+
+	/**
+	 * Sends a request to the resolvers.
+	 *
+	 * @param timeout the timeout of each attempt, or ADAPTIVE
+	 * @param delay   the time the resolver takes to reply, added to adaptive
+	 *                timeouts
+	 * @param refresh true if the request refreshes the resolvers list
+	 */
+	private CompletableFuture<Message> request(Message message, int timeout, int delay, boolean refresh) {
+		IOException failure = this.failure;
+		if (failure != null || !selector.isOpen()) {
+			CompletableFuture<Message> failed = new CompletableFuture<>();
+			failed.completeExceptionally((failure != null) ? failure : new ResolverClientException("Client closed"));
+			return failed;
+		}
+		int id = ids.getAndIncrement() & Integer.MAX_VALUE;
+		try {
+			byte[] data = Message.serialize(message, Protocol.V2, id);
+			List<InetSocketAddress> known = resolvers;
+			Pending request = new Pending(id, message, data, timeout, delay, refresh, known, resolverIndex % known.size());
+			pending.put(id, request);
+			if (acquire()) {
+				send(request);
+			} else {
+				waiting.add(request);
+				selector.wakeup();
+				// The reader may have stopped without seeing the request
+				if (!selector.isOpen() && pending.remove(id) != null) {
+					failure = this.failure;
+					request.future.completeExceptionally((failure != null) ? failure : new ResolverClientException("Client closed"));
+				}
+			}
+			return request.future;
+		} catch (IOException e) {
+			if (pending.remove(id) != null) inFlight.decrementAndGet();
+			CompletableFuture<Message> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Takes a slot for a request to send, if any is free.
+	 *
+	 * @return true if the request can be sent
+	 */
+	private boolean acquire() {
+		while (true) {
+			int current = inFlight.get();
+			if (current >= MAX_IN_FLIGHT) return false;
+			if (inFlight.compareAndSet(current, current + 1)) return true;
+		}
+	}
+
+	/**
+	 * Completes a sent request, freeing its slot.
+	 *
+	 * @return false if the request already completed
+	 */
+	private boolean complete(Pending request) {
+		if (pending.remove(request.id) == null) return false;
+		inFlight.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Sends waiting requests while slots are free.
+	 */
+	private void admit() {
+		while (!waiting.isEmpty() && acquire()) {
+			Pending request = waiting.poll();
+			if (request == null) {
+				inFlight.decrementAndGet();
+				return;
+			}
+			try {
+				send(request);
+			} catch (IOException e) {
+				if (complete(request)) request.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends an attempt of a request and schedules its timeout.
+	 */
+	private void send(Pending request) throws IOException {
+		InetSocketAddress resolver = request.resolvers.get(request.resolver);
+		Logger logger = this.logger;
+		if (logger != null) {
+			String name = (request.message instanceof SimpleMessage)
+				? request.message.toString() : request.message.getClass().getSimpleName();
+			logger.printf("Sending %s #%d to %s\n", name, request.id, resolver);
+		}
+		request.attempts++;
+		request.retransmitted = request.target != null;
+		request.target = resolver;
+		request.sent = System.nanoTime();
+		long timeout = (request.timeout == ADAPTIVE) ? health.timeout(resolver) + request.delay : request.timeout;
+		request.expiry = wheel.schedule(request, System.currentTimeMillis() + timeout);
+		// A full send buffer loses the datagram like the network would
+		channel.send(ByteBuffer.wrap(request.data), resolver);
+	}
+
+	/**
+	 * Handles the timeout of an attempt: tries the next resolver, falls back
+	 * to the seeds once every known resolver has been tried, or fails the
+	 * request once every seed has been tried too.
+	 */
+	private void expire(Pending request) {
+		if (pending.get(request.id) != request) return;
+		health.failure(request.resolvers.get(request.resolver));
+		// The list may be outdated after a fail-over, unless the refresh itself failed over
+		if (!request.refresh) lastRefresh = 0;
+		Logger logger = this.logger;
+		if (request.attempts >= request.resolvers.size()) {
+			if (request.resolvers == SEEDS) {
+				if (!complete(request)) return;
+				request.future.completeExceptionally(new ResolverClientException("No resolvers available"));
+				return;
+			}
+			if (logger != null) logger.printf("No known resolver available for #%d, falling back to seeds...\n", request.id);
+			resolvers = SEEDS;
+			request.resolvers = SEEDS;
+			request.attempts = 0;
+			request.resolver = health.pick(SEEDS, new Random().nextInt(SEEDS.size()));
+		} else {
+			if (logger != null) logger.printf("No answer from resolver for #%d, skipping...\n", request.id);
+			request.resolver = (request.resolver + 1) % request.resolvers.size();
+		}
+		try {
+			send(request);
+		} catch (IOException e) {
+			if (complete(request)) request.future.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Body of the reader thread: receives replies and advances the timer
+	 * wheel until the client is closed.
+	 */
+	private void read() {
+		try {
+			while (selector.isOpen()) {
+				selector.select(TICK);
+				selector.selectedKeys().clear();
+				CompletableFuture<?> refreshing = this.refreshing;
+				if ((refreshing == null || refreshing.isDone())
+						&& System.currentTimeMillis() - lastRefresh >= REFRESH_INTERVAL) {
+					refresh().exceptionally(failure -> null);
+				}
+				receive();
+				wheel.advance(System.currentTimeMillis(), this::expire);
+				admit();
+			}
+		} catch (ClosedSelectorException | ClosedChannelException closed) {
+			// The client was closed
+		} catch (IOException e) {
+			failure = e;
+			shutdown(e);
+		}
+	}
+
+	/**
+	 * Completes the requests matching every pending reply.
+	 */
+	private void receive() throws IOException {
+		while (true) {
+			buffer.clear();
+			InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+			if (sender == null) return;
+			buffer.flip();
+			Message message;
+			try {
+				message = codec.decode(buffer);
+			} catch (IOException e) {
+				continue;
+			}
+			int id = codec.correlation();
+			Pending request = (id != Codec.NO_CORRELATION) ? pending.get(id) : null;
+			if (request == null || !complete(request)) continue;
+			request.expiry.cancel();
+			// Karn's rule: a reply to a retransmitted request may answer any
+			// of its attempts, it gives no round-trip time sample
+			if (!request.retransmitted && sender.equals(request.target)) {
+				health.success(sender, System.nanoTime() - request.sent);
+			} else {
+				health.success(sender);
+			}
+			int index = resolvers.indexOf(sender);
+			if (index >= 0) resolverIndex = index;
+			request.future.complete(message);
+		}
+	}
+
+	/**
+	 * Performs a service registration request.
+	 *
+	 * @param service   the service id
+	 * @param agentPort the agent port of the instance
+	 * @return a future completed with the registration success flag
+	 */
+	public CompletableFuture<Boolean> register(int service, int agentPort) {
+		return request(new ServiceRegisterMessage(service, agentPort), ADAPTIVE, 0, false)
+			.thenApply(response -> response.type() == MessageType.SERVICE_REGISTERED);
+	}
+
+	/**
+	 * Requests a service address resolution.
+	 *
+	 * @param service the service id to resolve
+	 * @return a future completed with the service address, or null if unavailable
+	 */
+	public CompletableFuture<InetSocketAddress> resolve(int service) {
+		return request(new ServiceRequestMessage(service), ADAPTIVE, 0, false)
+			.thenApply(response -> ((ServiceOfferMessage) response).address);
+	}
+
+	/**
+	 * Notifies a resolver that the service is offline.
+	 *
+	 * @param service the service id
+	 * @param address the instance address
+	 * @return a future completed with true if the client should try again
+	 * using the same address
+	 */
+	public CompletableFuture<Boolean> offline(int service, InetSocketAddress address) {
+		return request(new ServiceOfflineMessage(service, address), ADAPTIVE, ResolverClient.OFFLINE_DELAY, false)
+			.thenApply(response -> ((ServiceThanksMessage) response).retry);
+	}
+
+	/**
+	 * Returns the number of requests waiting for their reply, including
+	 * requests not sent yet.
+	 */
+	public int pending() {
+		return pending.size();
+	}
+
+	/**
+	 * Closes the channel and fails every pending request.
+	 */
+	@Override
+	public void close() {
+		shutdown(new ResolverClientException("Client closed"));
+	}
+
+	/**
+	 * Closes the channel and fails every pending request with the given cause.
+	 */
+	private void shutdown(Exception cause) {
+		try {
+			selector.close();
+			channel.close();
+		} catch (IOException ignored) {}
+		for (Pending request : pending.values()) {
+			if (pending.remove(request.id) != null) {
+				request.future.completeExceptionally(cause);
+			}
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes and decodes messages in caller-supplied buffers.
+ * <p>
+ * Two frame formats are understood. A version 1 frame is the type of the
+ * message followed by its fields. A version 2 frame starts with a header
+ * byte, the version with the high bit set so that it cannot be mistaken for
+ * a type, and a flags byte. Without flags, the message follows. With the
+ * ENVELOPE flag, a varint count follows, then each message prefixed by its
+ * varint length. With the CORRELATED flag, a varint correlation id comes
+ * right after the flags, which the receiver echoes in its reply so that
+ * many requests can be in flight at once. Decoding detects the version of
+ * each frame, encoding uses the version asked by the caller.
+ * <p>
+ * A codec keeps a single pair of data streams whose underlying buffer is
+ * swapped on each call, so encoding or decoding a message allocates nothing
+ * but the decoded message itself. Hot types that should not even allocate a
+ * message are read and written in place with ServiceRequestView and
+ * ServiceOfferView.
+ * <p>
+ * This class is not thread-safe, each thread needs its own codec.
+ */
+public final class Codec {
+	/**
+	 * Size of the scratch buffer used by toBytes, large enough for any datagram.
+	 */
+	private static final int SCRATCH_SIZE = 65536;
+
+	/**
+	 * Flag of a version 2 frame holding several messages.
+	 */
+	public static final int ENVELOPE = 0x01;
+
+	/**
+	 * Flag of a version 2 frame carrying a correlation id.
+	 */
+	public static final int CORRELATED = 0x02;
+
+	/**
+	 * Correlation id of frames that do not carry one.
+	 */
+	public static final int NO_CORRELATION = -1;
+
+	/**
+	 * Marks the header byte of frames of version 2 or above.
+	 */
+	private static final int VERSIONED = 0x80;
+
+	/**
+	 * Output stream writing into the current target buffer.
+	 */
+	private static final class BufferOutput extends OutputStream {
+		ByteBuffer target;
+
+		@Override
+		public void write(int b) {
+			target.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			target.put(b, off, len);
+		}
+	}
+
+	/**
+	 * Input stream reading from the current source buffer.
+	 */
+	private static final class BufferInput extends InputStream {
+		ByteBuffer source;
+
+		@Override
+		public int read() {
+			return source.hasRemaining() ? source.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!source.hasRemaining()) return -1;
+			int n = Math.min(len, source.remaining());
+			source.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return source.remaining();
+		}
+	}
+
+	private final BufferOutput sink = new BufferOutput();
+	private final WireOutput output = new WireOutput(sink, Protocol.V1);
+	private final BufferInput source = new BufferInput();
+	private final WireInput input = new WireInput(source, Protocol.V1);
+
+	/**
+	 * Output discarding what is written, to measure messages of an envelope
+	 */
+	private final WireOutput measure = new WireOutput(new OutputStream() {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}, Protocol.V2);
+
+	/**
+	 * Version of the last decoded frame
+	 */
+	private int version = Protocol.V1;
+
+	/**
+	 * Correlation id of the last decoded frame, NO_CORRELATION if none
+	 */
+	private int correlation = NO_CORRELATION;
+
+	/**
+	 * Messages of the current envelope not decoded yet
+	 */
+	private int pending = 0;
+
+	/**
+	 * Buffer wrapping the last array given to decode, reused while the caller
+	 * keeps passing the same array
+	 */
+	private ByteBuffer wrapped;
+
+	/**
+	 * Scratch buffer of toBytes, allocated on first use
+	 */
+	private ByteBuffer scratch;
+
+	/**
+	 * Writes a version 1 frame at the position of a buffer, advancing the
+	 * position past it.
+	 *
+	 * @param message the message to write
+	 * @param target  the buffer to write into
+	 * @throws IOException if the message does not fit in the buffer
+	 */
+	public void encode(Message message, ByteBuffer target) throws IOException {
+		encode(message, target, Protocol.V1);
+	}
+
+	/**
+	 * Writes a frame of the given version at the position of a buffer,
+	 * advancing the position past it.
+	 *
+	 * @param message the message to write
+	 * @param target  the buffer to write into
+	 * @param version the version of the frame
+	 * @throws IOException if the message does not fit in the buffer
+	 */
+	public void encode(Message message, ByteBuffer target, int version) throws IOException {
+		encode(message, target, version, NO_CORRELATION);
+	}
+
+	/**
+	 * Writes a frame of the given version and correlation id at the position
+	 * of a buffer, advancing the position past it.
+	 *
+	 * @param message     the message to write
+	 * @param target      the buffer to write into
+	 * @param version     the version of the frame, at least 2 if correlated
+	 * @param correlation the non-negative correlation id, or NO_CORRELATION
+	 * @throws IOException if the message does not fit in the buffer
+	 */
+	public void encode(Message message, ByteBuffer target, int version, int correlation) throws IOException {
+		if (correlation != NO_CORRELATION && (correlation < 0 || version == Protocol.V1)) {
+			throw new IllegalArgumentException();
+		}
+		sink.target = target;
+		output.version = version;
+		try {
+			if (version != Protocol.V1) {
+				output.writeByte(VERSIONED | version);
+				if (correlation == NO_CORRELATION) {
+					output.writeByte(0);
+				} else {
+					output.writeByte(CORRELATED);
+					output.writeVarInt(correlation);
+				}
+			}
+			output.writeByte(message.type().ordinal());
+			message.serialize(output);
+		} catch (BufferOverflowException e) {
+			throw new IOException("Message " + message.type() + " does not fit in the buffer");
+		} finally {
+			sink.target = null;
+		}
+	}
+
+	/**
+	 * Writes several messages as a single version 2 envelope at the position
+	 * of a buffer, advancing the position past it.
+	 *
+	 * @param messages the messages to write
+	 * @param target   the buffer to write into
+	 * @throws IOException if the messages do not fit in the buffer
+	 */
+	public void encode(List<? extends Message> messages, ByteBuffer target) throws IOException {
+		sink.target = target;
+		output.version = Protocol.V2;
+		try {
+			output.writeByte(VERSIONED | Protocol.V2);
+			output.writeByte(ENVELOPE);
+			output.writeVarInt(messages.size());
+			for (Message message : messages) {
+				measure.resetSize();
+				measure.writeByte(message.type().ordinal());
+				message.serialize(measure);
+				output.writeVarInt(measure.size());
+				output.writeByte(message.type().ordinal());
+				message.serialize(output);
+			}
+		} catch (BufferOverflowException e) {
+			throw new IOException("Envelope of " + messages.size() + " messages does not fit in the buffer");
+		} finally {
+			sink.target = null;
+		}
+	}
+
+	/**
+	 * Reads a message from the position of a buffer, advancing the position
+	 * past it.
+	 * <p>
+	 * If the frame is an envelope, only its first message is read and
+	 * more() returns true: the following messages are read by calling this
+	 * method again with the same buffer.
+	 *
+	 * @param source the buffer to read from
+	 * @return the decoded message
+	 * @throws IOException if the buffer does not hold a valid message
+	 */
+	public Message decode(ByteBuffer source) throws IOException {
+		this.source.source = source;
+		try {
+			if (pending == 0) {
+				int header = input.readUnsignedByte();
+				correlation = NO_CORRELATION;
+				if ((header & VERSIONED) == 0) {
+					version = Protocol.V1;
+					input.version = version;
+					return MessageType.of(header).deserialize(input);
+				}
+				version = header & ~VERSIONED;
+				if (version < Protocol.V2 || version > Protocol.VERSION) {
+					throw new IOException("Unsupported wire format version " + version);
+				}
+				input.version = version;
+				int flags = input.readUnsignedByte();
+				if ((flags & CORRELATED) != 0) {
+					correlation = input.readVarInt();
+					if (correlation < 0) throw new IOException("Invalid correlation id");
+				}
+				if ((flags & ENVELOPE) == 0) {
+					return MessageType.of(input.readUnsignedByte()).deserialize(input);
+				}
+				pending = input.readVarInt();
+				if (pending == 0) throw new IOException("Empty envelope");
+			}
+
+			// Read the next message of the envelope, within its own bounds
+			pending--;
+			int length = input.readVarInt();
+			int limit = source.limit();
+			int end = source.position() + length;
+			if (length > source.remaining()) throw new IOException("Truncated envelope");
+			source.limit(end);
+			try {
+				return MessageType.of(input.readUnsignedByte()).deserialize(input);
+			} finally {
+				source.limit(limit);
+				source.position(end);
+			}
+		} catch (IOException | RuntimeException e) {
+			pending = 0;
+			throw e;
+		} finally {
+			this.source.source = null;
+		}
+	}
+
+	/**
+	 * Tells whether the last decoded envelope has messages left.
+	 */
+	public boolean more() {
+		return pending > 0;
+	}
+
+	/**
+	 * Returns the version of the last decoded frame.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Returns the correlation id of the last decoded frame.
+	 *
+	 * @return the correlation id, or NO_CORRELATION if the frame has none
+	 */
+	public int correlation() {
+		return correlation;
+	}
+
+	/**
+	 * Reads a message from a region of an array.
+	 *
+	 * @param data   the array to read from
+	 * @param offset the offset of the message
+	 * @param length the length of the message
+	 * @return the decoded message
+	 * @throws IOException if the region does not hold a valid message
+	 */
+	public Message decode(byte[] data, int offset, int length) throws IOException {
+		if (wrapped == null || wrapped.array() != data) wrapped = ByteBuffer.wrap(data);
+		wrapped.limit(offset + length).position(offset);
+		pending = 0;
+		return decode(wrapped);
+	}
+
+	/**
+	 * Encodes a message in a new array of the exact size.
+	 *
+	 * @param message the message to encode
+	 * @param version the version of the frame
+	 * @return the encoded message
+	 * @throws IOException if the message is larger than a datagram
+	 */
+	public byte[] toBytes(Message message, int version) throws IOException {
+		return toBytes(message, version, NO_CORRELATION);
+	}
+
+	/**
+	 * Encodes a correlated message in a new array of the exact size.
+	 *
+	 * @param message     the message to encode
+	 * @param version     the version of the frame, at least 2 if correlated
+	 * @param correlation the correlation id, or NO_CORRELATION
+	 * @return the encoded message
+	 * @throws IOException if the message is larger than a datagram
+	 */
+	public byte[] toBytes(Message message, int version, int correlation) throws IOException {
+		if (scratch == null) scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+		scratch.clear();
+		encode(message, scratch, version, correlation);
+		return Arrays.copyOf(scratch.array(), scratch.position());
+	}
+
+	/**
+	 * Encodes several messages as an envelope in a new array of the exact size.
+	 *
+	 * @param messages the messages to encode
+	 * @return the encoded envelope
+	 * @throws IOException if the envelope is larger than a datagram
+	 */
+	public byte[] toBytes(List<? extends Message> messages) throws IOException {
+		if (scratch == null) scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+		scratch.clear();
+		encode(messages, scratch);
+		return Arrays.copyOf(scratch.array(), scratch.position());
+	}
+}
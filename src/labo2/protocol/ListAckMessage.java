@@ -0,0 +1,31 @@
+package labo2.protocol;
+
+import java.io.IOException;
+
+/**
+ * Cumulative acknowledgement of a replication stream.
+ * <p>
+ * Acknowledges every batch of the session with a sequence number lower than
+ * next. Receiving the same acknowledgement again means that the receiver
+ * detected a gap and is still waiting for batch next.
+ */
+public class ListAckMessage extends Message {
+	public MessageType type() { return MessageType.LIST_ACK; }
+
+	public final long session;
+	public final int next;
+
+	public ListAckMessage(long session, int next) {
+		this.session = session;
+		this.next = next;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeLong(session);
+		output.writeSeq(next);
+	}
+
+	static ListAckMessage deserialize(WireInput input) throws IOException {
+		return new ListAckMessage(input.readLong(), input.readSeq());
+	}
+}
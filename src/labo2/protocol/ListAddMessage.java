@@ -1,7 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
@@ -9,32 +7,42 @@ import java.net.InetSocketAddress;
 /**
  * A message used to add a service
  * <p>
- * This message is used to register the given service.
+ * This message is used to register the given service. The addition is
+ * tagged with a dot, the index of the resolver that registered the instance
+ * and a counter unique to that resolver.
  */
 public class ListAddMessage extends Message {
 	public MessageType type() { return MessageType.LIST_ADD; }
 
-	public final byte service;
+	public final int service;
 	public final InetSocketAddress address;
 	public final int agentPort;
+	public final byte origin;
+	public final long counter;
 
-	public ListAddMessage(byte service, InetSocketAddress address, int agentPort) {
+	public ListAddMessage(int service, InetSocketAddress address, int agentPort, byte origin, long counter) {
 		this.service = service;
 		this.address = address;
 		this.agentPort = agentPort;
+		this.origin = origin;
+		this.counter = counter;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
-		output.writeByte(service);
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
 		AdresseEncoder.serialize(output, address);
-		output.writeInt(agentPort);
+		output.writePort(agentPort);
+		output.writeByte(origin);
+		output.writeCounter(counter);
 	}
 
-	static ListAddMessage deserialize(DataInputStream input) throws IOException {
+	static ListAddMessage deserialize(WireInput input) throws IOException {
 		return new ListAddMessage(
-			input.readByte(),
+			input.readInt(),
 			AdresseEncoder.unserialize(input),
-			input.readInt()
+			input.readPort(),
+			input.readByte(),
+			input.readCounter()
 		);
 	}
 }
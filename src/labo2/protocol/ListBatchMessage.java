@@ -0,0 +1,63 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of list mutations replicated to another resolver.
+ * <p>
+ * Entries are LIST_ADD and LIST_REMOVE messages, to apply in order. A batch
+ * holds as many entries as fit in a single datagram of at most Protocol.MTU
+ * bytes.
+ * <p>
+ * Batches of a replication stream are numbered. The session identifies the
+ * stream, seq is the number of this batch in the stream and first is the
+ * number of the oldest batch the sender can still retransmit. Receivers
+ * acknowledge batches with LIST_ACK. Batches of session 0 are sent in
+ * best-effort mode, they are not numbered and never acknowledged.
+ */
+public class ListBatchMessage extends Message {
+	public MessageType type() { return MessageType.LIST_BATCH; }
+
+	/**
+	 * Maximum number of entries in a batch: type, session, seq, first and
+	 * count header followed by the entries.
+	 */
+	public static final int MAX_ENTRIES = (Protocol.MTU - 1 - 8 - 4 - 4 - 2) / ListSyncChunkMessage.ENTRY_SIZE;
+
+	public final long session;
+	public final int seq;
+	public final int first;
+	public final List<Message> entries;
+
+	public ListBatchMessage(long session, int seq, int first, List<Message> entries) {
+		if (entries.size() > MAX_ENTRIES) throw new IllegalArgumentException();
+		this.session = session;
+		this.seq = seq;
+		this.first = first;
+		this.entries = entries;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeLong(session);
+		output.writeSeq(seq);
+		output.writeSeq(first);
+		output.writeCount(entries.size());
+		for (Message entry : entries) {
+			ListSyncChunkMessage.serializeEntry(output, entry);
+		}
+	}
+
+	static ListBatchMessage deserialize(WireInput input) throws IOException {
+		long session = input.readLong();
+		int seq = input.readSeq();
+		int first = input.readSeq();
+		int count = input.readCount();
+		List<Message> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			entries.add(ListSyncChunkMessage.deserializeEntry(input));
+		}
+		return new ListBatchMessage(session, seq, first, entries);
+	}
+}
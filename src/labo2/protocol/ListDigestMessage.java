@@ -0,0 +1,42 @@
+package labo2.protocol;
+
+import java.io.IOException;
+
+/**
+ * Digest of the directory of a resolver, exchanged for anti-entropy.
+ * <p>
+ * The directory is split in buckets by hash of the service and instance
+ * address, the digest of a bucket is an order-independent hash of its
+ * instances. The number of buckets does not depend on the number of
+ * services, so the digest always fits in a single datagram. The receiver
+ * replies with LIST_REPAIR entries for every bucket that differs and, unless
+ * the digest is itself a reply, with its own digest.
+ */
+public class ListDigestMessage extends Message {
+	public MessageType type() { return MessageType.LIST_DIGEST; }
+
+	public final boolean reply;
+	public final long[] digests;
+
+	public ListDigestMessage(boolean reply, long[] digests) {
+		this.reply = reply;
+		this.digests = digests;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeBoolean(reply);
+		output.writeCount(digests.length);
+		for (long digest : digests) {
+			output.writeLong(digest);
+		}
+	}
+
+	static ListDigestMessage deserialize(WireInput input) throws IOException {
+		boolean reply = input.readBoolean();
+		long[] digests = new long[input.readCount()];
+		for (int i = 0; i < digests.length; i++) {
+			digests[i] = input.readLong();
+		}
+		return new ListDigestMessage(reply, digests);
+	}
+}
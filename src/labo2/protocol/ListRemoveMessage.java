@@ -1,35 +1,43 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
 /**
  * A message used to remove a service
  * <p>
- * This message is used to unregister the given service.
+ * This message is used to unregister the given service. It removes a single
+ * dot of the instance, additions of the same instance with other dots are
+ * not affected.
  */
 public class ListRemoveMessage extends Message {
 	public MessageType type() { return MessageType.LIST_REMOVE; }
 
-	public final byte service;
+	public final int service;
 	public final InetSocketAddress address;
+	public final byte origin;
+	public final long counter;
 
-	public ListRemoveMessage(byte service, InetSocketAddress address) {
+	public ListRemoveMessage(int service, InetSocketAddress address, byte origin, long counter) {
 		this.service = service;
 		this.address = address;
+		this.origin = origin;
+		this.counter = counter;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
-		output.writeByte(service);
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
 		AdresseEncoder.serialize(output, address);
+		output.writeByte(origin);
+		output.writeCounter(counter);
 	}
 
-	static ListRemoveMessage deserialize(DataInputStream input) throws IOException {
+	static ListRemoveMessage deserialize(WireInput input) throws IOException {
 		return new ListRemoveMessage(
+			input.readInt(),
+			AdresseEncoder.unserialize(input),
 			input.readByte(),
-			AdresseEncoder.unserialize(input)
+			input.readCounter()
 		);
 	}
 }
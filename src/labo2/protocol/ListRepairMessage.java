@@ -0,0 +1,96 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Instances of the buckets that differ between two resolvers, sent in reply
+ * to a LIST_DIGEST. Entries are LIST_ADD messages.
+ * <p>
+ * The content of the buckets may be split in many parts, each part carries
+ * the round it belongs to, the bitmap of the transferred buckets and the
+ * causal context of the sender. The receiver merges the
+ * buckets once every part of the round has been received.
+ */
+public class ListRepairMessage extends Message {
+	public MessageType type() { return MessageType.LIST_REPAIR; }
+
+	/**
+	 * Returns the maximum number of entries in a single message: type, round,
+	 * part, parts, clock, buckets and count header followed by the entries.
+	 * The clock grows with the ids of the resolvers in the group.
+	 *
+	 * @param clock the clock sent in the message
+	 * @return the maximum number of entries
+	 */
+	public static int maxEntries(long[] clock) {
+		return (Protocol.MTU - 1 - 8 - 2 - 2 - (1 + 8 * clock.length) - 8 - 2) / ListSyncChunkMessage.ENTRY_SIZE;
+	}
+
+	public final long round;
+	public final int part;
+	public final int parts;
+	public final long[] clock;
+	public final long buckets;
+	public final List<Message> entries;
+
+	public ListRepairMessage(long round, int part, int parts, long[] clock, long buckets, List<Message> entries) {
+		if (entries.size() > maxEntries(clock)) throw new IllegalArgumentException();
+		this.round = round;
+		this.part = part;
+		this.parts = parts;
+		this.clock = clock;
+		this.buckets = buckets;
+		this.entries = entries;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeLong(round);
+		output.writeCount(part);
+		output.writeCount(parts);
+		AdresseEncoder.serializeClock(output, clock);
+		output.writeLong(buckets);
+		output.writeCount(entries.size());
+		for (Message entry : entries) {
+			ListSyncChunkMessage.serializeEntry(output, entry);
+		}
+	}
+
+	static ListRepairMessage deserialize(WireInput input) throws IOException {
+		long round = input.readLong();
+		int part = input.readCount();
+		int parts = input.readCount();
+		long[] clock = AdresseEncoder.unserializeClock(input);
+		long buckets = input.readLong();
+		int count = input.readCount();
+		List<Message> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			entries.add(ListSyncChunkMessage.deserializeEntry(input));
+		}
+		return new ListRepairMessage(round, part, parts, clock, buckets, entries);
+	}
+
+	/**
+	 * Splits the content of buckets in as many parts as needed.
+	 * At least one part is returned, even without any entry.
+	 *
+	 * @param round   the round identifier
+	 * @param clock   the causal context of the sender
+	 * @param buckets the bitmap of transferred buckets
+	 * @param entries the entries to split
+	 * @return the list of parts
+	 */
+	public static List<ListRepairMessage> split(long round, long[] clock, long buckets,
+		List<? extends Message> entries) {
+		int max = maxEntries(clock);
+		int parts = Math.max(1, (entries.size() + max - 1) / max);
+		List<ListRepairMessage> messages = new ArrayList<>(parts);
+		for (int part = 0; part < parts; part++) {
+			int from = part * max;
+			List<? extends Message> slice = entries.subList(from, Math.min(entries.size(), from + max));
+			messages.add(new ListRepairMessage(round, part, parts, clock, buckets, new ArrayList<>(slice)));
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,139 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chunk of the instances list, sent in reply to a synchronization request.
+ * <p>
+ * Each chunk packs as many entries as fit in a single datagram of at most
+ * Protocol.MTU bytes in the version of the transfer, entries being smaller
+ * in version 2. It carries a sequence number, allowing the receiver
+ * to request retransmission of missing chunks. Entries are LIST_ADD or
+ * LIST_REMOVE messages, the latter only being used by delta transfers.
+ */
+public class ListSyncChunkMessage extends Message {
+	public MessageType type() { return MessageType.LIST_SYNC_CHUNK; }
+
+	/**
+	 * Maximum size of an encoded entry: type, service, address, port, agent
+	 * port and dot.
+	 */
+	static final int ENTRY_SIZE = 1 + 4 + 4 + 4 + 4 + 1 + 8;
+
+	/**
+	 * Maximum number of entries in a version 1 chunk: type, sequence number
+	 * and count header followed by the entries.
+	 */
+	public static final int MAX_ENTRIES = (Protocol.MTU - 1 - 4 - 2) / ENTRY_SIZE;
+
+	/**
+	 * Space left for the entries of a version 2 chunk: frame header, type,
+	 * sequence number and count, as varints of at most 5 and 3 bytes.
+	 */
+	private static final int V2_PAYLOAD = Protocol.MTU - 2 - 1 - 5 - 3;
+
+	public final int seq;
+	public final List<Message> entries;
+
+	public ListSyncChunkMessage(int seq, List<Message> entries) {
+		this.seq = seq;
+		this.entries = entries;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeSeq(seq);
+		output.writeCount(entries.size());
+		for (Message entry : entries) {
+			serializeEntry(output, entry);
+		}
+	}
+
+	static ListSyncChunkMessage deserialize(WireInput input) throws IOException {
+		int seq = input.readSeq();
+		int count = input.readCount();
+		List<Message> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			entries.add(deserializeEntry(input));
+		}
+		return new ListSyncChunkMessage(seq, entries);
+	}
+
+	/**
+	 * Serializes a single entry, prefixed by its type.
+	 */
+	static void serializeEntry(WireOutput output, Message entry) throws IOException {
+		MessageType type = entry.type();
+		if (type != MessageType.LIST_ADD && type != MessageType.LIST_REMOVE) {
+			throw new IllegalArgumentException();
+		}
+		output.writeByte(type.ordinal());
+		entry.serialize(output);
+	}
+
+	/**
+	 * Deserializes a single entry.
+	 */
+	static Message deserializeEntry(WireInput input) throws IOException {
+		switch (MessageType.of(input.readByte())) {
+			case LIST_ADD:
+				return ListAddMessage.deserialize(input);
+			case LIST_REMOVE:
+				return ListRemoveMessage.deserialize(input);
+			default:
+				throw new IOException("Invalid synchronization entry");
+		}
+	}
+
+	/**
+	 * Splits a list of entries into version 1 chunks.
+	 *
+	 * @param entries the entries to split
+	 * @return the list of chunks, numbered from 0
+	 */
+	public static List<ListSyncChunkMessage> split(List<? extends Message> entries) {
+		List<ListSyncChunkMessage> chunks = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i += MAX_ENTRIES) {
+			List<? extends Message> slice = entries.subList(i, Math.min(entries.size(), i + MAX_ENTRIES));
+			chunks.add(new ListSyncChunkMessage(chunks.size(), new ArrayList<>(slice)));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Splits a list of entries into chunks of the given version.
+	 * Version 2 entries have a variable size, they are measured one by one
+	 * and packed until the chunk is full.
+	 *
+	 * @param entries the entries to split
+	 * @param version the version of the wire format
+	 * @return the list of chunks, numbered from 0
+	 */
+	public static List<ListSyncChunkMessage> split(List<? extends Message> entries, int version) throws IOException {
+		if (version == Protocol.V1) return split(entries);
+
+		WireOutput counter = new WireOutput(new OutputStream() {
+			@Override
+			public void write(int b) {}
+		}, version);
+		List<ListSyncChunkMessage> chunks = new ArrayList<>();
+		List<Message> chunk = new ArrayList<>();
+		int size = 0;
+		for (Message entry : entries) {
+			int start = counter.size();
+			serializeEntry(counter, entry);
+			int length = counter.size() - start;
+			if (size + length > V2_PAYLOAD) {
+				chunks.add(new ListSyncChunkMessage(chunks.size(), chunk));
+				chunk = new ArrayList<>();
+				size = 0;
+			}
+			chunk.add(entry);
+			size += length;
+		}
+		if (!chunk.isEmpty()) chunks.add(new ListSyncChunkMessage(chunks.size(), chunk));
+		return chunks;
+	}
+}
@@ -0,0 +1,83 @@
+package labo2.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Ends a list synchronization transfer.
+ * <p>
+ * The commit gives the number of chunks and entries sent, and a CRC32
+ * checksum of every entry in order, so the receiver can both detect missing
+ * chunks and validate the reassembled list. It also gives the epoch and
+ * version of the directory at the time of the transfer, and whether the
+ * entries are the full list or only the changes since the requested version.
+ * <p>
+ * Finally, the commit carries the causal context of the directory: for every
+ * resolver, the counter up to which every dot of that resolver has been seen.
+ * The receiver of a full list merges it with its own directory, removing
+ * instances whose dot was seen but is no longer in the list.
+ */
+public class ListSyncCommitMessage extends Message {
+	public MessageType type() { return MessageType.LIST_SYNC_COMMIT; }
+
+	public final int chunks;
+	public final int entries;
+	public final long checksum;
+	public final long epoch;
+	public final long version;
+	public final boolean delta;
+	public final long[] clock;
+
+	public ListSyncCommitMessage(int chunks, int entries, long checksum, long epoch, long version, boolean delta,
+		long[] clock) {
+		this.chunks = chunks;
+		this.entries = entries;
+		this.checksum = checksum;
+		this.epoch = epoch;
+		this.version = version;
+		this.delta = delta;
+		this.clock = clock;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeSeq(chunks);
+		output.writeSeq(entries);
+		output.writeInt((int) checksum);
+		output.writeLong(epoch);
+		output.writeCounter(version);
+		output.writeBoolean(delta);
+		AdresseEncoder.serializeClock(output, clock);
+	}
+
+	static ListSyncCommitMessage deserialize(WireInput input) throws IOException {
+		return new ListSyncCommitMessage(
+			input.readSeq(),
+			input.readSeq(),
+			input.readInt() & 0xFFFFFFFFL,
+			input.readLong(),
+			input.readCounter(),
+			input.readBoolean(),
+			AdresseEncoder.unserializeClock(input)
+		);
+	}
+
+	/**
+	 * Computes the checksum of a list of entries.
+	 *
+	 * @param entries the entries
+	 * @return the CRC32 of the entries serialized in version 1, whatever the
+	 * version of the transfer
+	 */
+	public static long checksum(List<? extends Message> entries) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		WireOutput output = new WireOutput(buffer, Protocol.V1);
+		for (Message entry : entries) {
+			ListSyncChunkMessage.serializeEntry(output, entry);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.toByteArray());
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,39 @@
+package labo2.protocol;
+
+import java.io.IOException;
+
+/**
+ * Requests list synchronization from another resolver.
+ * <p>
+ * If the requester already synchronized with the same directory history
+ * (epoch) in the past, it gives the last version it received and only the
+ * changes made since are transferred. Otherwise, or if the resolver no longer
+ * remembers changes that old, the full list is transferred.
+ */
+public class ListSyncRequestMessage extends Message {
+	public MessageType type() { return MessageType.LIST_SYNC_REQUEST; }
+
+	/**
+	 * Epoch of the directory history known by the requester, 0 if none
+	 */
+	public final long epoch;
+
+	/**
+	 * Last version known by the requester, -1 to request the full list
+	 */
+	public final long since;
+
+	public ListSyncRequestMessage(long epoch, long since) {
+		this.epoch = epoch;
+		this.since = since;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeLong(epoch);
+		output.writeLong(since);
+	}
+
+	static ListSyncRequestMessage deserialize(WireInput input) throws IOException {
+		return new ListSyncRequestMessage(input.readLong(), input.readLong());
+	}
+}
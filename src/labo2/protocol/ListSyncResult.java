@@ -0,0 +1,42 @@
+package labo2.protocol;
+
+import java.util.List;
+
+/**
+ * The result of a list synchronization.
+ */
+public class ListSyncResult {
+	/**
+	 * True if entries are the changes since the requested version, false if
+	 * they are the full list
+	 */
+	public final boolean delta;
+
+	/**
+	 * Epoch of the directory history of the resolver
+	 */
+	public final long epoch;
+
+	/**
+	 * Version of the directory of the resolver at the time of the transfer
+	 */
+	public final long version;
+
+	/**
+	 * LIST_ADD and LIST_REMOVE messages, to apply in order
+	 */
+	public final List<Message> entries;
+
+	/**
+	 * Causal context of the directory of the resolver, by resolver index
+	 */
+	public final long[] clock;
+
+	public ListSyncResult(boolean delta, long epoch, long version, List<Message> entries, long[] clock) {
+		this.delta = delta;
+		this.epoch = epoch;
+		this.version = version;
+		this.entries = entries;
+		this.clock = clock;
+	}
+}
@@ -0,0 +1,42 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Requests retransmission of missing chunks of a list synchronization transfer.
+ * <p>
+ * The resolver replies with the requested chunks followed by the commit
+ * message. An empty list only requests the commit message again.
+ */
+public class ListSyncRetransmitMessage extends Message {
+	public MessageType type() { return MessageType.LIST_SYNC_RETRANSMIT; }
+
+	/**
+	 * Maximum number of sequence numbers in a single request.
+	 */
+	public static final int MAX_SEQS = (Protocol.MTU - 1 - 2) / 4;
+
+	public final List<Integer> seqs;
+
+	public ListSyncRetransmitMessage(List<Integer> seqs) {
+		this.seqs = (seqs.size() > MAX_SEQS) ? seqs.subList(0, MAX_SEQS) : seqs;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeCount(seqs.size());
+		for (int seq : seqs) {
+			output.writeSeq(seq);
+		}
+	}
+
+	static ListSyncRetransmitMessage deserialize(WireInput input) throws IOException {
+		int count = input.readCount();
+		List<Integer> seqs = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			seqs.add(input.readSeq());
+		}
+		return new ListSyncRetransmitMessage(seqs);
+	}
+}
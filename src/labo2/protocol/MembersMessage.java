@@ -0,0 +1,95 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The resolver members list known by a resolver.
+ * <p>
+ * Resolvers gossip this list with each other: the receiver of a list that is
+ * not itself a reply answers with its own list. Each member carries a
+ * heartbeat counter, increased by the member itself, and the most recent
+ * heartbeat wins. The list is also sent to clients in reply to a
+ * MEMBERS_REQUEST, only including live members.
+ * <p>
+ * The message also advertises the highest wire format version supported by
+ * its sender, which is how resolvers negotiate the version they use with
+ * each other. In version 1 the version is an optional trailing byte, which
+ * resolvers predating version 2 ignore.
+ */
+public class MembersMessage extends Message {
+	public MessageType type() { return MessageType.MEMBERS; }
+
+	/**
+	 * A member of the resolvers group.
+	 */
+	public static class Member {
+		public final byte id;
+		public final InetSocketAddress address;
+		public final long heartbeat;
+		public final boolean left;
+
+		public Member(byte id, InetSocketAddress address, long heartbeat, boolean left) {
+			this.id = id;
+			this.address = address;
+			this.heartbeat = heartbeat;
+			this.left = left;
+		}
+	}
+
+	/**
+	 * Size of an encoded member: id, address, port, heartbeat and left flag.
+	 */
+	private static final int MEMBER_SIZE = 1 + 4 + 4 + 8 + 1;
+
+	/**
+	 * Maximum number of members in a message: type, reply flag and count
+	 * header followed by the members and the version.
+	 */
+	public static final int MAX_MEMBERS = (Protocol.MTU - 1 - 1 - 2 - 1) / MEMBER_SIZE;
+
+	public final boolean reply;
+	public final List<Member> members;
+
+	/**
+	 * Highest wire format version supported by the sender
+	 */
+	public final int version;
+
+	public MembersMessage(boolean reply, List<Member> members) {
+		this(reply, members, Protocol.VERSION);
+	}
+
+	public MembersMessage(boolean reply, List<Member> members, int version) {
+		this.reply = reply;
+		this.members = (members.size() > MAX_MEMBERS) ? members.subList(0, MAX_MEMBERS) : members;
+		this.version = version;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeBoolean(reply);
+		output.writeCount(members.size());
+		for (Member member : members) {
+			output.writeByte(member.id);
+			AdresseEncoder.serialize(output, member.address);
+			output.writeCounter(member.heartbeat);
+			output.writeBoolean(member.left);
+		}
+		output.writeByte(version);
+	}
+
+	static MembersMessage deserialize(WireInput input) throws IOException {
+		boolean reply = input.readBoolean();
+		int count = input.readCount();
+		List<Member> members = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			members.add(new Member(input.readByte(), AdresseEncoder.unserialize(input), input.readCounter(),
+				input.readBoolean()));
+		}
+		// Senders predating version 2 do not write their version
+		int version = (input.available() > 0) ? input.readUnsignedByte() : Protocol.V1;
+		return new MembersMessage(reply, members, version);
+	}
+}
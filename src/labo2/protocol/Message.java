@@ -1,6 +1,7 @@
 package labo2.protocol;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.List;
 
 /**
  * An abstract message reprenting a generic message
@@ -11,10 +12,16 @@ import java.io.*;
  */
 public abstract class Message {
 	public abstract MessageType type();
-	abstract void serialize(DataOutputStream output) throws IOException;
+	abstract void serialize(WireOutput output) throws IOException;
 
 	/**
-	 * Parse byte to message
+	 * Codec of each thread, so that the static helpers below do not allocate streams
+	 */
+	private static final ThreadLocal<Codec> CODECS = ThreadLocal.withInitial(Codec::new);
+
+	/**
+	 * Parse byte to message, whatever the version of the frame. Only the
+	 * first message of an envelope is returned.
 	 *
 	 * @param buffer the byte array to parse
 	 * @param offset the offset of the array, where it begins
@@ -22,21 +29,43 @@ public abstract class Message {
 	 * @return a corresponding instance of message
 	 */
 	public static Message parse(byte[] buffer, int offset, int length) throws IOException {
-		DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer, offset, length));
-		MessageType type = MessageType.values()[input.readByte()];
-		Message message = type.deserialize(input);
-		input.close();
-		return message;
+		return CODECS.get().decode(buffer, offset, length);
 	}
 
 	public static byte[] serialize(Message message) throws IOException {
-		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-		DataOutputStream output = new DataOutputStream(buffer);
-		output.writeByte(message.type().ordinal());
-		message.serialize(output);
-		byte[] data = buffer.toByteArray();
-		output.close();
-		buffer.close();
-		return data;
+		return serialize(message, Protocol.V1);
+	}
+
+	/**
+	 * Serializes a message in a frame of the given wire format version.
+	 *
+	 * @param message the message to serialize
+	 * @param version the version of the wire format
+	 * @return the encoded frame
+	 */
+	public static byte[] serialize(Message message, int version) throws IOException {
+		return CODECS.get().toBytes(message, version);
+	}
+
+	/**
+	 * Serializes a message in a version 2 frame carrying a correlation id.
+	 *
+	 * @param message     the message to serialize
+	 * @param version     the version of the wire format, at least 2
+	 * @param correlation the correlation id
+	 * @return the encoded frame
+	 */
+	public static byte[] serialize(Message message, int version, int correlation) throws IOException {
+		return CODECS.get().toBytes(message, version, correlation);
+	}
+
+	/**
+	 * Serializes several messages in a single version 2 envelope frame.
+	 *
+	 * @param messages the messages to serialize
+	 * @return the encoded frame
+	 */
+	public static byte[] serialize(List<? extends Message> messages) throws IOException {
+		return CODECS.get().toBytes(messages);
 	}
 }
@@ -1,6 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 
 /**
@@ -58,12 +57,13 @@ public enum MessageType {
 	/**
 	 * Sent by a resolver to another resolver to request list synchronization.
 	 */
-	LIST_SYNC_REQUEST(null),
+	LIST_SYNC_REQUEST(ListSyncRequestMessage::deserialize),
 
 	/**
 	 * Sent by a resolver after the list synchronization process is complete.
+	 * Carries the number of chunks and entries sent and their checksum.
 	 */
-	LIST_SYNC_COMMIT(null),
+	LIST_SYNC_COMMIT(ListSyncCommitMessage::deserialize),
 
 	/**
 	 * Sent by a resolver to other resolvers when an entry is added to the list.
@@ -76,18 +76,61 @@ public enum MessageType {
 	LIST_REMOVE(ListRemoveMessage::deserialize),
 
 	/**
-	 * This message is an implementation detail and not part of the protocol.
-	 * To ensure list correctness post-synchronization, resolvers need to defer
-	 * handling of message received during the synchronization process to after
-	 * the process is complete. However, we should only handle LIST_ADD and
-	 * LIST_REMOVE messages and drop everything else.
-	 * This message is sent to ourselves once the synchronization is complete
-	 * to mark the ready-state transition inside the incoming datagrams queue.
-	 * It is critical for this message to not be dropped by the kernel due to
-	 * a full receive buffer in the underlying UDP socket or the resolver will
-	 * be stuck in the sync state forever.
+	 * Sent by a resolver to other resolvers with many LIST_ADD and LIST_REMOVE
+	 * entries at once.
 	 */
-	SELF_READY(null);
+	LIST_BATCH(ListBatchMessage::deserialize),
+
+	/**
+	 * Sent by a resolver to acknowledge every LIST_BATCH of a replication
+	 * stream up to a given sequence number.
+	 */
+	LIST_ACK(ListAckMessage::deserialize),
+
+	/**
+	 * Sent periodically by a resolver to another resolver with a digest of its
+	 * directory, to detect and repair divergence.
+	 */
+	LIST_DIGEST(ListDigestMessage::deserialize),
+
+	/**
+	 * Sent by a resolver in reply to a LIST_DIGEST with the instances of the
+	 * directory buckets that differ.
+	 */
+	LIST_REPAIR(ListRepairMessage::deserialize),
+
+	/**
+	 * Sent by a resolver in reply to a LIST_SYNC_REQUEST, packs many entries
+	 * of the list in a single datagram.
+	 */
+	LIST_SYNC_CHUNK(ListSyncChunkMessage::deserialize),
+
+	/**
+	 * Sent by a resolver during synchronization to request missing chunks.
+	 */
+	LIST_SYNC_RETRANSMIT(ListSyncRetransmitMessage::deserialize),
+
+	/**
+	 * Sent by a resolver to another resolver with the members it knows, or by
+	 * a resolver to a client in reply to a MEMBERS_REQUEST.
+	 */
+	MEMBERS(MembersMessage::deserialize),
+
+	/**
+	 * Sent by a client to a resolver to fetch the list of live resolvers.
+	 */
+	MEMBERS_REQUEST(null),
+
+	// Public Resolver API, appended to keep the ordinals of older types
+	/**
+	 * Request of every instance of a service from a client to a resolver.
+	 */
+	SERVICE_LIST_REQUEST(ServiceListRequestMessage::deserialize),
+
+	/**
+	 * Every instance of a service, from a resolver to a client.
+	 */
+	SERVICE_LIST(ServiceListMessage::deserialize);
 
 	/**
 	 * The deserializer associated with this message type.
@@ -96,15 +139,32 @@ public enum MessageType {
 	 */
 	private final MessageDeserializer deserializer;
 
+	/**
+	 * Every type by ordinal, values() returns a fresh copy on each call.
+	 */
+	private static final MessageType[] TYPES = values();
+
 	MessageType(MessageDeserializer deserializer) {
 		this.deserializer = deserializer;
 	}
 
+	/**
+	 * Returns the type with the given ordinal, as written on the wire.
+	 *
+	 * @param ordinal the ordinal
+	 * @return the corresponding type
+	 * @throws IOException if there is no such type
+	 */
+	public static MessageType of(int ordinal) throws IOException {
+		if (ordinal < 0 || ordinal >= TYPES.length) throw new IOException("Invalid message type " + ordinal);
+		return TYPES[ordinal];
+	}
+
 	public boolean isSimple() {
 		return deserializer == null;
 	}
 
-	public Message deserialize(DataInputStream input) throws IOException {
+	public Message deserialize(WireInput input) throws IOException {
 		return (isSimple()) ? SimpleMessage.ofType(this) : deserializer.deserialize(input);
 	}
 }
@@ -9,8 +9,30 @@ import java.net.InetSocketAddress;
  */
 
 public class Protocol {
-	public static final int SERVICES_COUNT = 2;
+	/**
+	 * Maximum size of a datagram payload, chosen to avoid IP fragmentation.
+	 */
+	public static final int MTU = 1400;
 
+	/**
+	 * Versions of the wire format. Version 1 frames are a type byte followed
+	 * by fixed-width fields. Version 2 frames start with a version and a flags
+	 * byte, use varints for small fields and may pack several messages.
+	 * Every version is understood on receipt, the version used to send is
+	 * negotiated per peer.
+	 */
+	public static final int V1 = 1;
+	public static final int V2 = 2;
+
+	/**
+	 * Highest version of the wire format supported.
+	 */
+	public static final int VERSION = V2;
+
+	/**
+	 * Seed resolvers. Resolvers join the group by contacting these addresses,
+	 * and clients start with them before learning the live members list.
+	 */
 	public static final InetSocketAddress[] RESOLVERS = new InetSocketAddress[] {
 		new InetSocketAddress(InetAddress.getLoopbackAddress(), 6000),
 		new InetSocketAddress(InetAddress.getLoopbackAddress(), 6001),
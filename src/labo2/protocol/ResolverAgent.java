@@ -20,7 +20,7 @@ public class ResolverAgent {
 	private DatagramSocket serviceSocket;
 	private DatagramSocket agentSocket;
 
-	private ResolverAgent(DatagramSocket socket, String name, byte service) throws IOException {
+	private ResolverAgent(DatagramSocket socket, String name, int service) throws IOException {
 		log = Logger.getLogger("agent:" + name);
 		log.printf("Starting agent for service: %s [%d]\n", name, service);
 
@@ -86,7 +86,7 @@ public class ResolverAgent {
 	 * @return the new resolver agent
 	 * @throws IOException
 	 */
-	public static ResolverAgent register(DatagramSocket socket, String name, byte service) throws IOException {
+	public static ResolverAgent register(DatagramSocket socket, String name, int service) throws IOException {
 		return new ResolverAgent(socket, name, service);
 	}
 }
@@ -4,8 +4,13 @@ import labo2.utils.Logger;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import static labo2.protocol.Protocol.RESOLVERS;
@@ -15,11 +20,55 @@ import static labo2.protocol.Protocol.RESOLVERS;
  * <p>
  * This client implement the resolver fail-over system that will attempt to
  * switch to another resolver if the current one is not responsive.
- * On initialization, the first resolver to use is chosen at random.
  * As long as the current resolver is responsive, the client does not attempt
  * to switch to a new resolver.
- * If after testing each defined resolver once, none of them are responsive,
+ * If after testing each known resolver once, none of them are responsive,
  * the request fails with an ResolverClientException.
+ * <p>
+ * Round-trip times and timeouts are recorded in a ResolverHealth table,
+ * shared by every client of the process unless another one is set with
+ * withHealth(). On initialization, the first resolver to use is the fastest
+ * one known to the table, or one chosen at random. Resolvers whose breaker
+ * is open are only tried once every other resolver has failed, so that a
+ * resolver found down by any client does not cost a timeout to the others.
+ * <p>
+ * The timeouts of the requests made by this client are derived from the
+ * round-trip times of each resolver, as computed by the health table, so
+ * that a resolver which stops answering is failed over in a few times its
+ * usual round-trip time rather than after DEFAULT_TIMEOUT. Requests made
+ * with request() use the given timeout instead. Unless requests carry a
+ * correlation id, which is the case in version 2 frames, replies are only
+ * accepted from the resolvers tried for the pending request, and only if
+ * they have the type expected in reply: a late reply to an earlier request
+ * of another type, say an offer while offline is pending, is dropped.
+ * <p>
+ * Initially, the known resolvers are the seeds of Protocol.RESOLVERS. The
+ * list of live resolvers can be obtained from any member of the group with
+ * refresh(), or periodically and after every fail-over with withRefresh().
+ * Should every known resolver fail, the seeds are tried again.
+ * <p>
+ * Resolutions can be cached locally with withCache(). The client then
+ * fetches every instance of a service at once with a SERVICE_LIST_REQUEST,
+ * and until the TTL expires, resolutions rotate locally through them without
+ * any round trip, starting at a random instance so that clients spread their
+ * load. Instances registered meanwhile are learned after expiry. A service
+ * with too many instances to fit in a datagram is not cached. Unavailable
+ * answers are cached for at most UNAVAILABLE_TTL, and reporting an instance
+ * offline invalidates its service at once.
+ * <p>
+ * Requests are sent in version 1 of the wire format, which every resolver
+ * understands, unless another version is set with withVersion(). Replies
+ * are accepted in any version.
+ * <p>
+ * Resolutions can be hedged with withHedging(). Once enough round trips
+ * have been measured, a resolution that gets no answer within the given
+ * percentile of recent round-trip times is sent again to the next resolver
+ * rather than waiting for the whole timeout, and the first reply wins.
+ * Hedges are paid from a budget earned by every resolution, so that they
+ * never add more than the given fraction of requests. Hedged requests are
+ * sent in version 2 frames tagged with a correlation id, so that the late
+ * reply of the losing resolver is dropped rather than taken for the reply
+ * of a later request.
  */
 public class ResolverClient implements AutoCloseable {
 	/**
@@ -27,6 +76,54 @@ public class ResolverClient implements AutoCloseable {
 	 */
 	public static final int DEFAULT_TIMEOUT = 1000;
 
+	/**
+	 * Maximum time a resolver takes to check an instance reported offline
+	 * before replying: 2 sec.
+	 */
+	public static final int OFFLINE_DELAY = 2000;
+
+	/**
+	 * Timeout of requests whose attempts time out after the round-trip time
+	 * of each resolver.
+	 */
+	private static final int ADAPTIVE = 0;
+
+	/**
+	 * Maximum number of retransmission requests during a list synchronization.
+	 */
+	public static final int SYNC_ATTEMPTS = 5;
+
+	/**
+	 * Time between two automatic refreshes of the resolvers list: 30 sec.
+	 */
+	public static final long REFRESH_INTERVAL = 30000;
+
+	/**
+	 * Maximum time an unavailable answer is cached: 1 sec.
+	 */
+	public static final long UNAVAILABLE_TTL = 1000;
+
+	/**
+	 * Number of round-trip times kept to compute the hedging delay.
+	 */
+	private static final int RTT_SAMPLES = 128;
+
+	/**
+	 * Number of round-trip times measured before hedging starts, and between
+	 * two updates of the hedging delay.
+	 */
+	private static final int RTT_UPDATE = 16;
+
+	/**
+	 * Maximum number of hedges that can be saved up in the budget.
+	 */
+	private static final double HEDGE_BURST = 10;
+
+	/**
+	 * The seed resolvers
+	 */
+	private static final List<InetSocketAddress> SEEDS = Collections.unmodifiableList(Arrays.asList(RESOLVERS));
+
 	/**
 	 * Creates a new resolver client using the given datagram socket.
 	 *
@@ -34,7 +131,7 @@ public class ResolverClient implements AutoCloseable {
 	 * @return a new client instance
 	 */
 	public static ResolverClient using(DatagramSocket socket) {
-		return new ResolverClient(socket);
+		return new ResolverClient(socket, false);
 	}
 
 	/**
@@ -46,7 +143,7 @@ public class ResolverClient implements AutoCloseable {
 	 * @throws SocketException
 	 */
 	public static ResolverClient withNewSocket() throws SocketException {
-		return new ResolverClient(new DatagramSocket(null));
+		return new ResolverClient(new DatagramSocket(null), true);
 	}
 
 	/**
@@ -54,21 +151,160 @@ public class ResolverClient implements AutoCloseable {
 	 */
 	private final DatagramSocket socket;
 
+	/**
+	 * True if the socket is only used by this client, false if its timeout
+	 * must be restored after each request
+	 */
+	private final boolean ownSocket;
+
 	/**
 	 * Transmission buffer
 	 */
-	private final byte[] buffer = new byte[512];
+	private final byte[] buffer = new byte[Protocol.MTU];
 
 	/**
 	 * Reusable instance of DatagramPacket.
 	 */
 	private final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
 
+	/**
+	 * Codec decoding replies, and the rest of the last received envelope
+	 */
+	private final Codec codec = new Codec();
+	private final ByteBuffer received = ByteBuffer.wrap(buffer);
+
+	/**
+	 * Wire format version of the requests
+	 */
+	private int version = Protocol.V1;
+
+	/**
+	 * The known resolvers, initially the seeds.
+	 */
+	private List<InetSocketAddress> resolvers = SEEDS;
+
 	/**
 	 * The current resolver index to query.
 	 * On initialization, the initial resolver is chosen at random.
 	 */
-	private int resolverIndex = new Random().nextInt(RESOLVERS.length);
+	private int resolverIndex = new Random().nextInt(SEEDS.size());
+
+	/**
+	 * True if the resolvers list is refreshed automatically.
+	 */
+	private boolean refresh = false;
+
+	/**
+	 * Time of the last refresh of the resolvers list, 0 to refresh on the
+	 * next request.
+	 */
+	private long lastRefresh = 0;
+
+	/**
+	 * The instances known for a service.
+	 */
+	private static class CacheEntry {
+		/**
+		 * Instances in offer order, empty if the service is unavailable
+		 */
+		final List<InetSocketAddress> instances;
+
+		/**
+		 * Time after which the entry is no longer used
+		 */
+		final long expiry;
+
+		/**
+		 * True if every instance is known, the entry is then used for
+		 * resolution; else the service is resolved by the resolver until
+		 * expiry
+		 */
+		final boolean complete;
+
+		/**
+		 * Index of the next instance to return
+		 */
+		int next;
+
+		CacheEntry(long expiry, List<InetSocketAddress> instances, boolean complete) {
+			this.expiry = expiry;
+			this.instances = instances;
+			this.complete = complete;
+			this.next = instances.isEmpty() ? 0 : new Random().nextInt(instances.size());
+		}
+	}
+
+	/**
+	 * Resolutions cache by service id, null if disabled
+	 */
+	private Map<Integer, CacheEntry> cache = null;
+
+	/**
+	 * Time to live of the cache entries
+	 */
+	private long ttl;
+
+	/**
+	 * Percentile of the round-trip times after which a resolution is hedged,
+	 * 0 if hedging is disabled
+	 */
+	private double hedgePercentile = 0;
+
+	/**
+	 * Hedges earned by each resolution, and hedges available
+	 */
+	private double hedgeBudget;
+	private double hedgeTokens = 0;
+
+	/**
+	 * Current hedging delay in milliseconds, 0 until enough round trips
+	 * have been measured
+	 */
+	private int hedgeDelay = 0;
+
+	/**
+	 * Recent round-trip times in microseconds, as a ring, and the number
+	 * measured so far
+	 */
+	private final int[] rtts = new int[RTT_SAMPLES];
+	private long rttCount = 0;
+
+	/**
+	 * Correlation id of the next hedged request
+	 */
+	private int nextCorrelation = 0;
+
+	/**
+	 * Correlation id of the reply being waited for, NO_CORRELATION unless a
+	 * hedged request is pending
+	 */
+	private int expected = Codec.NO_CORRELATION;
+
+	/**
+	 * Type of the reply to the pending request, null to accept any type
+	 */
+	private MessageType awaited;
+
+	/**
+	 * Sender of the last received reply
+	 */
+	private InetSocketAddress sender;
+
+	/**
+	 * Times at which the pending uncorrelated request was sent to each
+	 * resolver, 0 if not tried, null to accept replies from any address
+	 */
+	private long[] tried;
+
+	/**
+	 * Current timeout of the socket, -1 if unknown
+	 */
+	private int soTimeout = -1;
+
+	/**
+	 * The health of the resolvers
+	 */
+	private ResolverHealth health = ResolverHealth.shared();
 
 	/**
 	 * The logger to use, if any.
@@ -78,10 +314,13 @@ public class ResolverClient implements AutoCloseable {
 	/**
 	 * Constructor.
 	 *
-	 * @param socket the socket to use for communication with the resolver
+	 * @param socket    the socket to use for communication with the resolver
+	 * @param ownSocket true if the socket is only used by this client
 	 */
-	private ResolverClient(DatagramSocket socket) {
+	private ResolverClient(DatagramSocket socket, boolean ownSocket) {
 		this.socket = socket;
+		this.ownSocket = ownSocket;
+		this.resolverIndex = health.pick(resolvers, resolverIndex);
 	}
 
 	/**
@@ -96,19 +335,137 @@ public class ResolverClient implements AutoCloseable {
 		return this;
 	}
 
+	/**
+	 * Sets the resolver health table to use instead of the shared one, and
+	 * picks the first resolver to use from it.
+	 *
+	 * @param health the health table
+	 * @return this object
+	 */
+	public ResolverClient withHealth(ResolverHealth health) {
+		this.health = health;
+		this.resolverIndex = health.pick(resolvers, resolverIndex);
+		return this;
+	}
+
+	/**
+	 * Enables automatic refresh of the resolvers list: on the first request,
+	 * every REFRESH_INTERVAL and after every fail-over.
+	 *
+	 * @return this object
+	 */
+	public ResolverClient withRefresh() {
+		this.refresh = true;
+		return this;
+	}
+
+	/**
+	 * Enables the local resolutions cache.
+	 *
+	 * @param ttl the time to live of the known instances of a service, in
+	 *            milliseconds
+	 * @return this object
+	 */
+	public ResolverClient withCache(long ttl) {
+		if (ttl <= 0) throw new IllegalArgumentException();
+		this.cache = new HashMap<>();
+		this.ttl = ttl;
+		return this;
+	}
+
+	/**
+	 * Sets the wire format version of the requests.
+	 *
+	 * @param version the version, at most Protocol.VERSION
+	 * @return this object
+	 */
+	public ResolverClient withVersion(int version) {
+		if (version < Protocol.V1 || version > Protocol.VERSION) throw new IllegalArgumentException();
+		this.version = version;
+		return this;
+	}
+
+	/**
+	 * Enables hedged resolutions.
+	 *
+	 * @param percentile the percentile of recent round-trip times after which
+	 *                   a resolution is also sent to the next resolver, in ]0, 1[
+	 * @param budget     the maximum fraction of resolutions that are hedged,
+	 *                   in ]0, 1]
+	 * @return this object
+	 */
+	public ResolverClient withHedging(double percentile, double budget) {
+		if (percentile <= 0 || percentile >= 1 || budget <= 0 || budget > 1) throw new IllegalArgumentException();
+		this.hedgePercentile = percentile;
+		this.hedgeBudget = budget;
+		return this;
+	}
+
+	/**
+	 * Returns the current hedging delay.
+	 *
+	 * @return the delay in milliseconds, 0 if resolutions are not hedged yet
+	 */
+	public int getHedgeDelay() {
+		return hedgeDelay;
+	}
+
 	/**
 	 * Manually sets the resolver index to use.
 	 * Note that this setting only affects the initial queried resolver: if the given
-	 * resolver is not responsive, the next one will be tried automatically.
+	 * resolver is not responsive, or its breaker is open, the next one will be
+	 * tried automatically.
 	 *
 	 * @param index
 	 * @return
 	 */
 	public ResolverClient setResolverIndex(int index) {
-		this.resolverIndex = index % RESOLVERS.length;
+		this.resolverIndex = index % resolvers.size();
 		return this;
 	}
 
+	/**
+	 * Returns the index of the current resolver, the last one to have answered.
+	 *
+	 * @return the resolver index
+	 */
+	public int getResolverIndex() {
+		return resolverIndex;
+	}
+
+	/**
+	 * Returns the known resolvers, in which the resolver index is defined.
+	 *
+	 * @return the resolver addresses
+	 */
+	public List<InetSocketAddress> getResolvers() {
+		return Collections.unmodifiableList(resolvers);
+	}
+
+	/**
+	 * Replaces the known resolvers by the live members of the resolvers group,
+	 * as seen by the current resolver. The current resolver is kept if it is
+	 * still a member.
+	 *
+	 * @throws IOException
+	 * @throws ResolverClientException if no resolver is available
+	 */
+	public void refresh() throws IOException {
+		lastRefresh = System.currentTimeMillis();
+		MembersMessage response = (MembersMessage) request(SimpleMessage.ofType(MessageType.MEMBERS_REQUEST), ADAPTIVE, 0, false);
+		List<InetSocketAddress> members = new ArrayList<>(response.members.size());
+		for (MembersMessage.Member member : response.members) {
+			members.add(member.address);
+		}
+		if (members.isEmpty()) return;
+
+		int index = members.indexOf(resolvers.get(resolverIndex));
+		resolvers = members;
+		resolverIndex = (index >= 0) ? index : health.pick(members, new Random().nextInt(members.size()));
+		lastRefresh = System.currentTimeMillis();
+		if (logger != null) logger.printf("Refreshed resolvers list: %s\n", members);
+	}
+
 	/**
 	 * Sends a generic request to the resolver and wait for a reply.
 	 *
@@ -118,53 +475,255 @@ public class ResolverClient implements AutoCloseable {
 	 * @throws ResolverClientException if no resolver are available
 	 */
 	public Message request(Message message, int timeout) throws IOException {
-		int origResolverIndex = resolverIndex;
-		byte[] data = Message.serialize(message);
-		do {
-			// Request
-			InetSocketAddress resolver = RESOLVERS[resolverIndex];
-			packet.setAddress(resolver.getAddress());
-			packet.setPort(resolver.getPort());
-			packet.setData(data);
-			if (logger != null) {
-				String name = (message instanceof SimpleMessage) ? message.toString() : message.getClass().getSimpleName();
-				logger.printf("Sending %s to %s\n", name, resolver);
+		if (timeout <= 0) throw new IllegalArgumentException();
+		return request(message, timeout, 0, false);
+	}
+
+	/**
+	 * Sends a generic request to the resolver and wait for a reply.
+	 *
+	 * @param message the request message
+	 * @param timeout the timeout of each attempt, or ADAPTIVE
+	 * @param delay   the time the resolver takes to reply, added to adaptive
+	 *                timeouts
+	 * @param hedged  true if the request may be hedged, it must be idempotent
+	 * @return the response message
+	 * @throws IOException
+	 * @throws ResolverClientException if no resolver are available
+	 */
+	private Message request(Message message, int timeout, int delay, boolean hedged) throws IOException {
+		if (refresh && System.currentTimeMillis() - lastRefresh >= REFRESH_INTERVAL) refresh();
+
+		hedged &= hedgePercentile > 0;
+		byte[] data;
+		if (hedged) hedgeTokens = Math.min(hedgeTokens + hedgeBudget, HEDGE_BURST);
+		if (hedged || (timeout == ADAPTIVE && version >= Protocol.V2)) {
+			expected = nextCorrelation;
+			nextCorrelation = (nextCorrelation + 1) & Integer.MAX_VALUE;
+			data = Message.serialize(message, Math.max(version, Protocol.V2), expected);
+		} else {
+			data = Message.serialize(message, version);
+		}
+		int origSoTimeout = ownSocket ? 0 : socket.getSoTimeout();
+		awaited = reply(message.type());
+		try {
+			Message response = attempt(message, data, timeout, delay, hedged);
+			if (response == null && resolvers != SEEDS) {
+				if (logger != null) logger.printf("No known resolver available, falling back to seeds...\n");
+				resolvers = SEEDS;
+				resolverIndex = health.pick(SEEDS, new Random().nextInt(SEEDS.size()));
+				response = attempt(message, data, timeout, delay, hedged);
 			}
-			socket.send(packet);
-
-			// Response
-			Message response = receive(timeout);
-			if (response == null) {
-				if (logger != null) logger.printf("No answer from resolver, skipping...\n");
-				resolverIndex = (resolverIndex + 1) % RESOLVERS.length;
-			} else {
-				return response;
+			if (response == null) throw new ResolverClientException("No resolvers available");
+			return response;
+		} finally {
+			expected = Codec.NO_CORRELATION;
+			awaited = null;
+			restoreTimeout(origSoTimeout);
+		}
+	}
+
+	/**
+	 * Sends a request to each known resolver in turn, starting with the
+	 * current one, until one of them replies. Resolvers whose breaker is
+	 * open are tried last.
+	 * <p>
+	 * A hedged request moves on to the next resolver after the hedging delay
+	 * if the budget allows, and keeps accepting the reply of any resolver
+	 * already tried.
+	 *
+	 * @param message the request message
+	 * @param data    the serialized message
+	 * @param timeout the timeout of each attempt, or ADAPTIVE
+	 * @param delay   the time the resolver takes to reply, added to adaptive
+	 *                timeouts
+	 * @param hedged  true if the request may be hedged
+	 * @return the response message, or null if no resolver replied
+	 * @throws IOException
+	 */
+	private Message attempt(Message message, byte[] data, int timeout, int delay, boolean hedged) throws IOException {
+		int origResolverIndex = resolverIndex;
+		List<Integer> order = health.order(resolvers, resolverIndex);
+		long[] sent = new long[resolvers.size()];
+		if (expected == Codec.NO_CORRELATION) tried = sent;
+		try {
+			for (int i = 0; i < order.size(); i++) {
+				// Request
+				int index = order.get(i);
+				InetSocketAddress resolver = resolvers.get(index);
+				int wait = (timeout == ADAPTIVE) ? (int) health.timeout(resolver) + delay : timeout;
+				// Takes the trial of a half-open breaker, a resolver not allowed
+				// is still tried as a last resort
+				health.allow(resolver);
+				send(message, data, resolver);
+				sent[index] = System.nanoTime();
+
+				// Response, or hedge once the delay has elapsed
+				boolean hedge = hedged && hedgeDelay > 0 && hedgeTokens >= 1 && i + 1 < order.size();
+				Message response = receive(hedge ? Math.min(hedgeDelay, wait) : wait);
+				if (response == null) {
+					if (hedge) {
+						hedgeTokens -= 1;
+						if (logger != null) logger.printf("No answer from resolver within %d ms, hedging...\n", hedgeDelay);
+					} else {
+						health.failure(resolver);
+						if (logger != null) logger.printf("No answer from resolver, skipping...\n");
+					}
+				} else {
+					int answered = resolvers.indexOf(sender);
+					if (answered < 0 || sent[answered] == 0) answered = index;
+					long rtt = System.nanoTime() - sent[answered];
+					if (delay == 0) {
+						health.success(resolvers.get(answered), rtt);
+					} else {
+						// The resolver took its time to reply, not a round trip
+						health.success(resolvers.get(answered));
+					}
+					if (hedged) measure(rtt);
+					resolverIndex = answered;
+					// The list may be outdated after a fail-over
+					if (resolverIndex != origResolverIndex) lastRefresh = 0;
+					return response;
+				}
 			}
-		} while (resolverIndex != origResolverIndex);
-		throw new ResolverClientException("No resolvers available");
+			return null;
+		} finally {
+			tried = null;
+		}
+	}
+
+	/**
+	 * Records the round-trip time of a hedged request, and updates the
+	 * hedging delay every RTT_UPDATE measures.
+	 *
+	 * @param nanos the round-trip time, in nanoseconds
+	 */
+	private void measure(long nanos) {
+		rtts[(int) (rttCount++ % RTT_SAMPLES)] = (int) Math.min(nanos / 1000, Integer.MAX_VALUE);
+		if (rttCount % RTT_UPDATE != 0) return;
+		int count = (int) Math.min(rttCount, RTT_SAMPLES);
+		int[] sorted = Arrays.copyOf(rtts, count);
+		Arrays.sort(sorted);
+		int micros = sorted[Math.min((int) (count * hedgePercentile), count - 1)];
+		hedgeDelay = Math.max(1, (micros + 999) / 1000);
+	}
+
+	/**
+	 * Sends a message to the current resolver without waiting for a reply.
+	 *
+	 * @param message the message
+	 * @param data    the serialized message
+	 * @throws IOException
+	 */
+	private void send(Message message, byte[] data) throws IOException {
+		send(message, data, resolvers.get(resolverIndex));
+	}
+
+	/**
+	 * Sends a message to the given resolver without waiting for a reply.
+	 *
+	 * @param message  the message
+	 * @param data     the serialized message
+	 * @param resolver the address of the resolver
+	 * @throws IOException
+	 */
+	private void send(Message message, byte[] data, InetSocketAddress resolver) throws IOException {
+		packet.setAddress(resolver.getAddress());
+		packet.setPort(resolver.getPort());
+		packet.setData(data);
+		if (logger != null) {
+			String name = (message instanceof SimpleMessage) ? message.toString() : message.getClass().getSimpleName();
+			logger.printf("Sending %s to %s\n", name, resolver);
+		}
+		socket.send(packet);
 	}
 
 	/**
 	 * Receives a generic message.
-	 * The operation will timeout after DEFAULT_TIMEOUT milliseconds.
+	 * Messages left from the last received envelope are returned first.
+	 * Replies that do not carry the correlation id of the pending request,
+	 * that come from a resolver it was not sent to, or that are not of the
+	 * type expected in reply, are late replies to an earlier request: they
+	 * are dropped.
 	 *
+	 * @param timeout the timeout, in milliseconds
 	 * @return the received message, or null in case of a timeout
 	 * @throws IOException
 	 */
 	private Message receive(int timeout) throws IOException {
-		int origSoTimeout = socket.getSoTimeout();
+		if (codec.more()) return codec.decode(received);
+		long deadline = System.currentTimeMillis() + timeout;
 		try {
-			socket.setSoTimeout(timeout);
-			packet.setData(buffer);
-			socket.receive(packet);
-			return Message.parse(packet.getData(), packet.getOffset(), packet.getLength());
+			while (true) {
+				// The timeout is only changed when needed, once per request
+				// at most on a shared socket
+				if (timeout != soTimeout) {
+					socket.setSoTimeout(timeout);
+					soTimeout = timeout;
+				}
+				packet.setData(buffer);
+				socket.receive(packet);
+				received.limit(packet.getLength()).position(0);
+				Message message = codec.decode(received);
+				InetSocketAddress from = (InetSocketAddress) packet.getSocketAddress();
+				if (codec.correlation() == expected && (tried == null || wasTried(from))
+					&& (awaited == null || message.type() == awaited)) {
+					sender = from;
+					return message;
+				}
+				// A late reply to an earlier request
+				while (codec.more()) codec.decode(received);
+				timeout = (int) (deadline - System.currentTimeMillis());
+				if (timeout <= 0) return null;
+			}
 		} catch (SocketTimeoutException e) {
 			return null;
-		} finally {
-			socket.setSoTimeout(origSoTimeout);
 		}
 	}
 
+	/**
+	 * Restores the timeout of a socket shared with other users, see using().
+	 *
+	 * @param origSoTimeout the timeout of the socket before the request
+	 * @throws SocketException
+	 */
+	private void restoreTimeout(int origSoTimeout) throws SocketException {
+		if (ownSocket || soTimeout == -1) return;
+		socket.setSoTimeout(origSoTimeout);
+		soTimeout = -1;
+	}
+
+	/**
+	 * Returns the type of the reply to a request type.
+	 *
+	 * @param request the request type
+	 * @return the reply type, or null if the reply may be of any type
+	 */
+	private static MessageType reply(MessageType request) {
+		switch (request) {
+			case SERVICE_REGISTER:
+				return MessageType.SERVICE_REGISTERED;
+			case SERVICE_REQUEST:
+				return MessageType.SERVICE_OFFER;
+			case SERVICE_OFFLINE:
+				return MessageType.SERVICE_THANKS;
+			case SERVICE_LIST_REQUEST:
+				return MessageType.SERVICE_LIST;
+			case MEMBERS_REQUEST:
+				return MessageType.MEMBERS;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Tells whether the pending request was sent to the given address.
+	 */
+	private boolean wasTried(InetSocketAddress address) {
+		int index = resolvers.indexOf(address);
+		return index >= 0 && tried[index] != 0;
+	}
+
 	/**
 	 * Performs a service registration request.
 	 *
@@ -173,9 +732,9 @@ public class ResolverClient implements AutoCloseable {
 	 * @return the registration success flag
 	 * @throws IOException
 	 */
-	public boolean register(byte service, int agentPort) throws IOException {
+	public boolean register(int service, int agentPort) throws IOException {
 		Message request = new ServiceRegisterMessage(service, agentPort);
-		Message response = request(request, DEFAULT_TIMEOUT);
+		Message response = request(request, ADAPTIVE, 0, false);
 		return response.type() == MessageType.SERVICE_REGISTERED;
 	}
 
@@ -186,42 +745,149 @@ public class ResolverClient implements AutoCloseable {
 	 * @return the service address, or null if unavailable
 	 * @throws IOException
 	 */
-	public InetSocketAddress resolve(byte service) throws IOException {
+	public InetSocketAddress resolve(int service) throws IOException {
+		if (cache == null) return fetch(service);
+
+		long now = System.currentTimeMillis();
+		CacheEntry entry = cache.get(service);
+		if (entry != null && now >= entry.expiry) {
+			cache.remove(service);
+			entry = null;
+		}
+		if (entry == null) {
+			ServiceListMessage list = (ServiceListMessage) request(new ServiceListRequestMessage(service), ADAPTIVE, 0, true);
+			long expiry = now + (list.instances.isEmpty() ? Math.min(ttl, UNAVAILABLE_TTL) : ttl);
+			entry = new CacheEntry(expiry, list.instances, list.complete());
+			cache.put(service, entry);
+			if (logger != null) logger.printf("Cached %d of %d instances of [%d]\n", list.instances.size(), list.total, service);
+		}
+		if (!entry.complete) return fetch(service);
+		if (entry.instances.isEmpty()) return null;
+		InetSocketAddress address = entry.instances.get(entry.next);
+		entry.next = (entry.next + 1) % entry.instances.size();
+		return address;
+	}
+
+	/**
+	 * Requests a service address resolution from the resolver.
+	 *
+	 * @param service the service id to resolve
+	 * @return the service address, or null if unavailable
+	 * @throws IOException
+	 */
+	private InetSocketAddress fetch(int service) throws IOException {
 		Message request = new ServiceRequestMessage(service);
-		ServiceOfferMessage response = (ServiceOfferMessage) request(request, DEFAULT_TIMEOUT);
+		ServiceOfferMessage response = (ServiceOfferMessage) request(request, ADAPTIVE, 0, true);
 		return response.address;
 	}
 
 	/**
 	 * Notifies a resolver that the service is offline.
+	 * Cached instances of the service are invalidated.
 	 *
 	 * @param service the service id
 	 * @param address the instance address
 	 * @return true, if the client should try again using the same address
 	 * @throws IOException
 	 */
-	public boolean offline(byte service, InetSocketAddress address) throws IOException {
-		return ((ServiceThanksMessage) request(new ServiceOfflineMessage(service, address), DEFAULT_TIMEOUT * 5)).retry;
+	public boolean offline(int service, InetSocketAddress address) throws IOException {
+		if (cache != null) cache.remove(service);
+		Message request = new ServiceOfflineMessage(service, address);
+		return ((ServiceThanksMessage) request(request, ADAPTIVE, OFFLINE_DELAY, false)).retry;
 	}
 
 	/**
 	 * Requests list synchronization from another resolver.
+	 * <p>
+	 * The list is received as numbered chunks followed by a commit message.
+	 * Missing chunks are requested again from the same resolver, up to
+	 * SYNC_ATTEMPTS times, and the reassembled list is validated against the
+	 * entry count and checksum of the commit.
+	 * <p>
+	 * If the given epoch matches the directory history of the resolver and it
+	 * still remembers changes since the given version, only those changes are
+	 * received. Otherwise the full list is received.
 	 *
-	 * @return the instance list
+	 * @param epoch the epoch of the last synchronization, 0 if none
+	 * @param since the version of the last synchronization, -1 if none
+	 * @return the synchronization result
 	 * @throws IOException
+	 * @throws IllegalStateException if the list could not be fully received
 	 */
-	public List<ListAddMessage> sync() throws IOException {
-		Message response = request(SimpleMessage.ofType(MessageType.LIST_SYNC_REQUEST), DEFAULT_TIMEOUT);
-		List<ListAddMessage> instances = new ArrayList<>();
-		while (response.type() != MessageType.LIST_SYNC_COMMIT) {
-			if (response.type() == MessageType.LIST_ADD) {
-				instances.add((ListAddMessage) response);
-				response = receive(DEFAULT_TIMEOUT);
-				if (response != null) continue;
+	public ListSyncResult sync(long epoch, long since) throws IOException {
+		int origSoTimeout = ownSocket ? 0 : socket.getSoTimeout();
+		try {
+			return transfer(epoch, since);
+		} finally {
+			restoreTimeout(origSoTimeout);
+		}
+	}
+
+	/**
+	 * Requests list synchronization from another resolver, see sync().
+	 */
+	private ListSyncResult transfer(long epoch, long since) throws IOException {
+		Message response = request(new ListSyncRequestMessage(epoch, since), DEFAULT_TIMEOUT);
+		Map<Integer, ListSyncChunkMessage> chunks = new HashMap<>();
+		ListSyncCommitMessage commit = null;
+		int attempts = 0;
+		while (true) {
+			if (response != null && response.type() == MessageType.LIST_SYNC_CHUNK) {
+				ListSyncChunkMessage chunk = (ListSyncChunkMessage) response;
+				chunks.putIfAbsent(chunk.seq, chunk);
+			} else if (response != null && response.type() == MessageType.LIST_SYNC_COMMIT) {
+				commit = (ListSyncCommitMessage) response;
+				if (chunks.size() == commit.chunks) break;
+			} else if (response != null) {
+				throw new IllegalStateException("Unexpected message during synchronization: " + response);
+			}
+
+			// Request missing chunks on timeout, or after a commit with missing chunks
+			if (response == null || response.type() == MessageType.LIST_SYNC_COMMIT) {
+				if (++attempts > SYNC_ATTEMPTS) throw new IllegalStateException("Synchronization failed");
+				Message retransmit = new ListSyncRetransmitMessage(missingChunks(chunks, commit));
+				send(retransmit, Message.serialize(retransmit, version));
 			}
-			throw new IllegalStateException();
+			response = receive(DEFAULT_TIMEOUT);
+		}
+
+		List<Message> entries = new ArrayList<>(commit.entries);
+		for (int seq = 0; seq < commit.chunks; seq++) {
+			entries.addAll(chunks.get(seq).entries);
+		}
+		if (entries.size() != commit.entries || ListSyncCommitMessage.checksum(entries) != commit.checksum) {
+			throw new IllegalStateException("Synchronization checksum mismatch");
+		}
+		return new ListSyncResult(commit.delta, commit.epoch, commit.version, entries, commit.clock);
+	}
+
+	/**
+	 * Requests the full list from another resolver.
+	 *
+	 * @return the synchronization result
+	 * @throws IOException
+	 * @throws IllegalStateException if the list could not be fully received
+	 */
+	public ListSyncResult sync() throws IOException {
+		return sync(0, -1);
+	}
+
+	/**
+	 * Lists chunks missing from a synchronization transfer.
+	 * If the commit was not received yet, the total number of chunks is unknown
+	 * and only gaps below the highest received chunk are reported.
+	 *
+	 * @param chunks the chunks received so far
+	 * @param commit the commit message, if received
+	 * @return the sequence numbers of missing chunks
+	 */
+	private static List<Integer> missingChunks(Map<Integer, ListSyncChunkMessage> chunks, ListSyncCommitMessage commit) {
+		int total = (commit != null) ? commit.chunks : chunks.keySet().stream().mapToInt(i -> i + 1).max().orElse(0);
+		List<Integer> missing = new ArrayList<>();
+		for (int seq = 0; seq < total; seq++) {
+			if (!chunks.containsKey(seq)) missing.add(seq);
 		}
-		return instances;
+		return missing;
 	}
 
 	public void close() {
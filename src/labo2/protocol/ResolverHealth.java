@@ -0,0 +1,367 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A table of the health of resolvers, shared by clients.
+ * <p>
+ * For each resolver, the table keeps a smoothed round-trip time, its mean
+ * deviation and a circuit breaker. As in the retransmission timer of TCP
+ * (RFC 6298), the timeout of a request is the smoothed round-trip time plus
+ * four deviations, bounded between MIN_TIMEOUT and MAX_TIMEOUT, and doubled
+ * after each consecutive timeout. MAX_TIMEOUT is used for resolvers without
+ * any history.
+ * <p>
+ * The breaker of a resolver opens after FAILURE_THRESHOLD consecutive
+ * timeouts: clients then try it only once every other resolver has failed.
+ * While it is open, the resolver is probed in the background every
+ * PROBE_INTERVAL, and the breaker closes as soon as a probe or any request
+ * is answered. Once PROBE_INTERVAL has elapsed without a probe answered, the
+ * breaker is half-open: a single request is let through as a trial, and the
+ * breaker opens again if it fails.
+ * <p>
+ * Clients created without a table of their own use the process-wide table
+ * returned by shared(), so that a resolver found down by one client is
+ * skipped by the others without paying its timeout again.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ResolverHealth {
+	/**
+	 * Consecutive timeouts after which the breaker of a resolver opens.
+	 */
+	public static final int FAILURE_THRESHOLD = 2;
+
+	/**
+	 * Time between two probes of a resolver whose breaker is open: 1 sec.
+	 */
+	public static final long PROBE_INTERVAL = 1000;
+
+	/**
+	 * Bounds of the request timeout, in milliseconds. The lower bound is the
+	 * minimum retransmission timeout of TCP, so that a scheduling pause of a
+	 * resolver does not count as a failure.
+	 */
+	public static final long MIN_TIMEOUT = 200;
+	public static final long MAX_TIMEOUT = ResolverClient.DEFAULT_TIMEOUT;
+
+	/**
+	 * Weights of a new round-trip time in the smoothed round-trip time and
+	 * in its deviation.
+	 */
+	private static final double RTT_ALPHA = 1.0 / 8;
+	private static final double RTT_BETA = 1.0 / 4;
+
+	/**
+	 * Number of deviations above the smoothed round-trip time at which a
+	 * request times out.
+	 */
+	private static final int RTT_DEVIATIONS = 4;
+
+	/**
+	 * The process-wide table.
+	 */
+	private static final ResolverHealth SHARED = new ResolverHealth();
+
+	/**
+	 * Returns the process-wide table, used by default by every client.
+	 *
+	 * @return the shared table
+	 */
+	public static ResolverHealth shared() {
+		return SHARED;
+	}
+
+	/**
+	 * State of a circuit breaker.
+	 */
+	public enum State {
+		/**
+		 * The resolver answers, requests are sent to it
+		 */
+		CLOSED,
+
+		/**
+		 * The resolver is down, it is only probed
+		 */
+		OPEN,
+
+		/**
+		 * The resolver may be back, a trial request is let through
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * The health of a resolver.
+	 */
+	private static class Health {
+		/**
+		 * Smoothed round-trip time and its mean deviation in microseconds,
+		 * negative if none was measured
+		 */
+		double rtt = -1;
+		double deviation;
+
+		/**
+		 * Consecutive timeouts
+		 */
+		int failures = 0;
+
+		State state = State.CLOSED;
+
+		/**
+		 * Time at which the breaker opened, or the trial was let through
+		 */
+		long since;
+
+		/**
+		 * True while a background probe is scheduled
+		 */
+		boolean probing = false;
+	}
+
+	private final Map<InetSocketAddress, Health> table = new HashMap<>();
+
+	/**
+	 * Scheduler of the background probes, created on first use
+	 */
+	private ScheduledExecutorService prober;
+
+	/**
+	 * Returns the health of a resolver, created closed if unknown.
+	 */
+	private Health health(InetSocketAddress resolver) {
+		return table.computeIfAbsent(resolver, r -> new Health());
+	}
+
+	/**
+	 * Tells whether a request can be sent to a resolver. If the breaker is
+	 * open and the probe interval elapsed, it becomes half-open and the
+	 * caller is granted the trial request.
+	 *
+	 * @param resolver the resolver address
+	 * @return true if the resolver can be used
+	 */
+	public synchronized boolean allow(InetSocketAddress resolver) {
+		Health health = health(resolver);
+		long now = System.currentTimeMillis();
+		switch (health.state) {
+			case CLOSED:
+				return true;
+			case OPEN:
+				if (now - health.since < PROBE_INTERVAL) return false;
+				health.state = State.HALF_OPEN;
+				health.since = now;
+				return true;
+			default:
+				// A trial without outcome is considered lost after an interval
+				if (now - health.since < PROBE_INTERVAL) return false;
+				health.since = now;
+				return true;
+		}
+	}
+
+	/**
+	 * Tells whether allow() would let a request through to a resolver,
+	 * without changing the state of its breaker nor taking its trial.
+	 *
+	 * @param resolver the resolver address
+	 * @return true if the resolver can be used
+	 */
+	public synchronized boolean allowed(InetSocketAddress resolver) {
+		Health health = health(resolver);
+		return health.state == State.CLOSED || System.currentTimeMillis() - health.since >= PROBE_INTERVAL;
+	}
+
+	/**
+	 * Records a reply of a resolver, closing its breaker.
+	 *
+	 * @param resolver the resolver address
+	 * @param nanos    the round-trip time, in nanoseconds
+	 */
+	public synchronized void success(InetSocketAddress resolver, long nanos) {
+		Health health = health(resolver);
+		double micros = nanos / 1000.0;
+		if (health.rtt < 0) {
+			health.rtt = micros;
+			health.deviation = micros / 2;
+		} else {
+			health.deviation += RTT_BETA * (Math.abs(micros - health.rtt) - health.deviation);
+			health.rtt += RTT_ALPHA * (micros - health.rtt);
+		}
+		health.failures = 0;
+		health.state = State.CLOSED;
+	}
+
+	/**
+	 * Records a reply of a resolver whose round-trip time cannot be measured,
+	 * closing its breaker.
+	 *
+	 * @param resolver the resolver address
+	 */
+	public synchronized void success(InetSocketAddress resolver) {
+		Health health = health(resolver);
+		health.failures = 0;
+		health.state = State.CLOSED;
+	}
+
+	/**
+	 * Records a timeout of a resolver, opening its breaker after
+	 * FAILURE_THRESHOLD consecutive ones or after a failed trial.
+	 *
+	 * @param resolver the resolver address
+	 */
+	public synchronized void failure(InetSocketAddress resolver) {
+		Health health = health(resolver);
+		health.failures++;
+		if (health.state == State.HALF_OPEN || health.failures >= FAILURE_THRESHOLD) {
+			health.state = State.OPEN;
+			health.since = System.currentTimeMillis();
+			probe(resolver, health);
+		}
+	}
+
+	/**
+	 * Returns the state of the breaker of a resolver.
+	 *
+	 * @param resolver the resolver address
+	 * @return the breaker state
+	 */
+	public synchronized State state(InetSocketAddress resolver) {
+		return health(resolver).state;
+	}
+
+	/**
+	 * Returns the time after which a request to the given resolver should be
+	 * considered lost.
+	 *
+	 * @param resolver the resolver address
+	 * @return the timeout in milliseconds
+	 */
+	public synchronized long timeout(InetSocketAddress resolver) {
+		Health health = health(resolver);
+		if (health.rtt < 0) return MAX_TIMEOUT;
+		long timeout = (long) Math.ceil((health.rtt + RTT_DEVIATIONS * health.deviation) / 1000);
+		timeout = Math.max(MIN_TIMEOUT, timeout) << Math.min(health.failures, 16);
+		return Math.min(MAX_TIMEOUT, timeout);
+	}
+
+	/**
+	 * Returns the smoothed round-trip time of a resolver.
+	 *
+	 * @param resolver the resolver address
+	 * @return the round-trip time in microseconds, or a negative value if unknown
+	 */
+	public synchronized double rtt(InetSocketAddress resolver) {
+		return health(resolver).rtt;
+	}
+
+	/**
+	 * Orders resolvers for a request starting at the given index: resolvers
+	 * allowed by their breaker come first, in turn, then the others as a
+	 * last resort. The breakers are left untouched: allow() must be called
+	 * for each resolver a request is actually sent to.
+	 *
+	 * @param resolvers the known resolvers
+	 * @param start     the index of the resolver to try first
+	 * @return the indices of the resolvers, in the order to try them
+	 */
+	public synchronized List<Integer> order(List<InetSocketAddress> resolvers, int start) {
+		List<Integer> order = new ArrayList<>(resolvers.size());
+		List<Integer> down = new ArrayList<>();
+		for (int i = 0; i < resolvers.size(); i++) {
+			int index = (start + i) % resolvers.size();
+			(allowed(resolvers.get(index)) ? order : down).add(index);
+		}
+		order.addAll(down);
+		return order;
+	}
+
+	/**
+	 * Picks the resolver to use first: the closed one with the lowest smoothed
+	 * round-trip time, else the given default if it is closed, else any
+	 * closed one.
+	 *
+	 * @param resolvers the known resolvers
+	 * @param fallback  the index to use when no round-trip time is known
+	 * @return the index of the preferred resolver
+	 */
+	public synchronized int pick(List<InetSocketAddress> resolvers, int fallback) {
+		int best = -1;
+		double bestRtt = Double.MAX_VALUE;
+		for (int i = 0; i < resolvers.size(); i++) {
+			Health health = health(resolvers.get(i));
+			if (health.state == State.CLOSED && health.rtt >= 0 && health.rtt < bestRtt) {
+				best = i;
+				bestRtt = health.rtt;
+			}
+		}
+		if (best >= 0) return best;
+		for (int i = 0; i < resolvers.size(); i++) {
+			int index = (fallback + i) % resolvers.size();
+			if (health(resolvers.get(index)).state == State.CLOSED) return index;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Schedules background probes of a resolver until its breaker closes.
+	 */
+	private void probe(InetSocketAddress resolver, Health health) {
+		if (health.probing) return;
+		health.probing = true;
+		if (prober == null) {
+			prober = new ScheduledThreadPoolExecutor(1, task -> {
+				Thread thread = new Thread(task, "resolver-health-prober");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		prober.schedule(() -> probe(resolver), PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends a members request to a resolver whose breaker is open, and
+	 * reschedules the probe unless it is answered.
+	 */
+	private void probe(InetSocketAddress resolver) {
+		synchronized (this) {
+			Health health = health(resolver);
+			if (health.state == State.CLOSED) {
+				health.probing = false;
+				return;
+			}
+		}
+		boolean answered = false;
+		try (DatagramSocket socket = new DatagramSocket()) {
+			byte[] data = Message.serialize(SimpleMessage.ofType(MessageType.MEMBERS_REQUEST));
+			socket.setSoTimeout((int) MAX_TIMEOUT);
+			long start = System.nanoTime();
+			socket.send(new DatagramPacket(data, data.length, resolver));
+			socket.receive(new DatagramPacket(new byte[Protocol.MTU], Protocol.MTU));
+			success(resolver, System.nanoTime() - start);
+			answered = true;
+		} catch (SocketTimeoutException e) {
+			// Still down
+		} catch (IOException e) {
+			// Unreachable, still down
+		}
+		synchronized (this) {
+			Health health = health(resolver);
+			health.probing = false;
+			if (!answered && health.state != State.CLOSED) probe(resolver, health);
+		}
+	}
+}
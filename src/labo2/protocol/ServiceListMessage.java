@@ -0,0 +1,68 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every instance of a service, in reply to a SERVICE_LIST_REQUEST.
+ * <p>
+ * At most MAX_INSTANCES instances fit in a datagram. The total number of
+ * instances is sent along, so that a truncated list can be told apart.
+ */
+public class ServiceListMessage extends Message {
+	public MessageType type() { return MessageType.SERVICE_LIST; }
+
+	/**
+	 * Size of an encoded instance: address and port.
+	 */
+	private static final int INSTANCE_SIZE = 4 + 4;
+
+	/**
+	 * Maximum number of instances in a message: type, service, total and
+	 * count header followed by the instances.
+	 */
+	public static final int MAX_INSTANCES = (Protocol.MTU - 1 - 4 - 2 - 2) / INSTANCE_SIZE;
+
+	public final int service;
+	public final int total;
+	public final List<InetSocketAddress> instances;
+
+	public ServiceListMessage(int service, List<InetSocketAddress> instances) {
+		this(service, instances.size(), instances);
+	}
+
+	private ServiceListMessage(int service, int total, List<InetSocketAddress> instances) {
+		this.service = service;
+		this.total = total;
+		this.instances = (instances.size() > MAX_INSTANCES) ? instances.subList(0, MAX_INSTANCES) : instances;
+	}
+
+	/**
+	 * Tells whether every instance of the service is listed.
+	 */
+	public boolean complete() {
+		return instances.size() == total;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
+		output.writeCount(total);
+		output.writeCount(instances.size());
+		for (InetSocketAddress instance : instances) {
+			AdresseEncoder.serialize(output, instance);
+		}
+	}
+
+	static ServiceListMessage deserialize(WireInput input) throws IOException {
+		int service = input.readInt();
+		int total = input.readCount();
+		int count = input.readCount();
+		List<InetSocketAddress> instances = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			instances.add(AdresseEncoder.unserialize(input));
+		}
+		return new ServiceListMessage(service, total, instances);
+	}
+}
@@ -0,0 +1,24 @@
+package labo2.protocol;
+
+import java.io.IOException;
+
+/**
+ * Request of every instance of a service, used by clients caching resolutions.
+ */
+public class ServiceListRequestMessage extends Message {
+	public MessageType type() { return MessageType.SERVICE_LIST_REQUEST; }
+
+	public final int service;
+
+	public ServiceListRequestMessage(int service) {
+		this.service = service;
+	}
+
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
+	}
+
+	static ServiceListRequestMessage deserialize(WireInput input) throws IOException {
+		return new ServiceListRequestMessage(input.readInt());
+	}
+}
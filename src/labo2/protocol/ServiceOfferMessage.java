@@ -1,7 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
@@ -16,14 +14,14 @@ public class ServiceOfferMessage extends Message {
 		this.address = address;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
+	void serialize(WireOutput output) throws IOException {
 		output.writeBoolean(available);
 		if (available) {
 			AdresseEncoder.serialize(output, address);
 		}
 	}
 
-	static ServiceOfferMessage deserialize(DataInputStream input) throws IOException {
+	static ServiceOfferMessage deserialize(WireInput input) throws IOException {
 		boolean available = input.readBoolean();
 		if (available) {
 			InetSocketAddress address = AdresseEncoder.unserialize(input);
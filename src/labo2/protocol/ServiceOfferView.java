@@ -0,0 +1,118 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight over an encoded SERVICE_OFFER.
+ * <p>
+ * The view reads the fields in place from the buffer it wraps, so a single
+ * instance can be reused for every offer. The address is exposed as a packed
+ * IPv4 address and a port, it is only materialized on demand. The view is
+ * only valid until the wrapped buffer is modified.
+ */
+public final class ServiceOfferView {
+	/**
+	 * Size of an available offer: type, availability, IPv4 address and port.
+	 */
+	public static final int SIZE = 1 + 1 + 4 + 4;
+
+	/**
+	 * Size of an offer without address.
+	 */
+	public static final int UNAVAILABLE_SIZE = 1 + 1;
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * Wraps the offer at the position of a buffer, the position is left
+	 * unchanged.
+	 *
+	 * @param buffer the buffer holding the offer
+	 * @return this view
+	 * @throws IOException if the buffer does not hold an offer
+	 */
+	public ServiceOfferView wrap(ByteBuffer buffer) throws IOException {
+		int offset = buffer.position();
+		if (buffer.remaining() < UNAVAILABLE_SIZE
+			|| buffer.get(offset) != MessageType.SERVICE_OFFER.ordinal()
+			|| (buffer.get(offset + 1) != 0 && buffer.remaining() < SIZE)) {
+			throw new IOException("Not a service offer");
+		}
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Tells whether the service is available.
+	 */
+	public boolean available() {
+		return buffer.get(offset + 1) != 0;
+	}
+
+	/**
+	 * Returns the packed IPv4 address of the offered instance.
+	 * Only meaningful if the service is available.
+	 */
+	public int ip() {
+		return buffer.getInt(offset + 2);
+	}
+
+	/**
+	 * Returns the port of the offered instance.
+	 * Only meaningful if the service is available.
+	 */
+	public int port() {
+		return buffer.getInt(offset + 6);
+	}
+
+	/**
+	 * Materializes the address of the offered instance.
+	 *
+	 * @return the address, or null if the service is not available
+	 */
+	public InetSocketAddress address() {
+		if (!available()) return null;
+		int ip = ip();
+		byte[] bytes = { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(bytes), port());
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Writes an available offer at the position of a buffer, advancing the
+	 * position past it.
+	 *
+	 * @param target the buffer to write into
+	 * @param ip     the packed IPv4 address of the instance
+	 * @param port   the port of the instance
+	 */
+	public static void write(ByteBuffer target, int ip, int port) {
+		target.put((byte) MessageType.SERVICE_OFFER.ordinal()).put((byte) 1).putInt(ip).putInt(port);
+	}
+
+	/**
+	 * Writes an offer at the position of a buffer, advancing the position
+	 * past it.
+	 *
+	 * @param target  the buffer to write into
+	 * @param address the address of the instance, or null if the service is
+	 *                not available
+	 */
+	public static void write(ByteBuffer target, InetSocketAddress address) {
+		if (address == null) {
+			target.put((byte) MessageType.SERVICE_OFFER.ordinal()).put((byte) 0);
+		} else {
+			target.put((byte) MessageType.SERVICE_OFFER.ordinal()).put((byte) 1)
+				.put(address.getAddress().getAddress()).putInt(address.getPort());
+		}
+	}
+}
@@ -1,29 +1,27 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
 public class ServiceOfflineMessage extends Message {
 	public MessageType type() { return MessageType.SERVICE_OFFLINE; }
 
-	public final byte service;
+	public final int service;
 	public final InetSocketAddress address;
 
-	public ServiceOfflineMessage(byte service, InetSocketAddress address) {
+	public ServiceOfflineMessage(int service, InetSocketAddress address) {
 		this.service = service;
 		this.address = address;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
-		output.writeByte(service);
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
 		AdresseEncoder.serialize(output, address);
 	}
 
-	static ServiceOfflineMessage deserialize(DataInputStream input) throws IOException {
+	static ServiceOfflineMessage deserialize(WireInput input) throws IOException {
 		return new ServiceOfflineMessage(
-			input.readByte(),
+			input.readInt(),
 			AdresseEncoder.unserialize(input)
 		);
 	}
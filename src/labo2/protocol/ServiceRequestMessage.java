@@ -1,23 +1,21 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class ServiceRequestMessage extends Message {
 	public MessageType type() { return MessageType.SERVICE_REQUEST; }
 
-	public final byte service;
+	public final int service;
 
-	public ServiceRequestMessage(byte service) {
+	public ServiceRequestMessage(int service) {
 		this.service = service;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
-		output.writeByte(service);
+	void serialize(WireOutput output) throws IOException {
+		output.writeInt(service);
 	}
 
-	static ServiceRequestMessage deserialize(DataInputStream input) throws IOException {
-		return new ServiceRequestMessage(input.readByte());
+	static ServiceRequestMessage deserialize(WireInput input) throws IOException {
+		return new ServiceRequestMessage(input.readInt());
 	}
 }
@@ -0,0 +1,63 @@
+package labo2.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight over an encoded SERVICE_REQUEST.
+ * <p>
+ * The view reads the fields in place from the buffer it wraps, so a single
+ * instance can be reused for every request without allocating a message.
+ * It is only valid until the wrapped buffer is modified.
+ */
+public final class ServiceRequestView {
+	/**
+	 * Size of an encoded request: type and service id.
+	 */
+	public static final int SIZE = 1 + 4;
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	/**
+	 * Wraps the request at the position of a buffer, the position is left
+	 * unchanged.
+	 *
+	 * @param buffer the buffer holding the request
+	 * @return this view
+	 * @throws IOException if the buffer does not hold a request
+	 */
+	public ServiceRequestView wrap(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < SIZE || !is(buffer)) {
+			throw new IOException("Not a service request");
+		}
+		this.buffer = buffer;
+		this.offset = buffer.position();
+		return this;
+	}
+
+	/**
+	 * Tells whether the message at the position of a buffer is a request.
+	 */
+	public static boolean is(ByteBuffer buffer) {
+		return buffer.hasRemaining() && buffer.get(buffer.position()) == MessageType.SERVICE_REQUEST.ordinal();
+	}
+
+	/**
+	 * Returns the id of the requested service.
+	 */
+	public int service() {
+		return buffer.getInt(offset + 1);
+	}
+
+	/**
+	 * Writes a request at the position of a buffer, advancing the position
+	 * past it.
+	 *
+	 * @param target  the buffer to write into
+	 * @param service the id of the requested service
+	 */
+	public static void write(ByteBuffer target, int service) {
+		target.put((byte) MessageType.SERVICE_REQUEST.ordinal()).putInt(service);
+	}
+}
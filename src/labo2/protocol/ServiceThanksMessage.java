@@ -1,7 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 public class ServiceThanksMessage extends Message {
@@ -13,11 +11,11 @@ public class ServiceThanksMessage extends Message {
 		this.retry = retry;
 	}
 
-	void serialize(DataOutputStream output) throws IOException {
+	void serialize(WireOutput output) throws IOException {
 		output.writeBoolean(retry);
 	}
 
-	static ServiceThanksMessage deserialize(DataInputStream input) throws IOException {
+	static ServiceThanksMessage deserialize(WireInput input) throws IOException {
 		return new ServiceThanksMessage(input.readBoolean());
 	}
 }
@@ -1,6 +1,5 @@
 package labo2.protocol;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
@@ -10,7 +9,20 @@ import java.io.IOException;
  */
 
 public class SimpleMessage extends Message {
-	private static SimpleMessage[] INSTANCES = null;
+	/**
+	 * The instance of every simple type, by ordinal
+	 */
+	private static final SimpleMessage[] INSTANCES;
+
+	static {
+		MessageType[] types = MessageType.values();
+		INSTANCES = new SimpleMessage[types.length];
+		for (MessageType t : types) {
+			if (t.isSimple()) {
+				INSTANCES[t.ordinal()] = new SimpleMessage(t);
+			}
+		}
+	}
 
 	private MessageType type;
 
@@ -26,19 +38,11 @@ public class SimpleMessage extends Message {
 		return "SimpleMessage<" + type + ">";
 	}
 
-	void serialize(DataOutputStream output) throws IOException {}
+	void serialize(WireOutput output) throws IOException {}
 
-	public static synchronized SimpleMessage ofType(MessageType type) {
+	public static SimpleMessage ofType(MessageType type) {
 		if (!type.isSimple()) {
 			throw new IllegalArgumentException();
-		} else if (INSTANCES == null) {
-			MessageType[] types = MessageType.values();
-			INSTANCES = new SimpleMessage[types.length];
-			for (MessageType t : types) {
-				if (t.isSimple()) {
-					INSTANCES[t.ordinal()] = new SimpleMessage(t);
-				}
-			}
 		}
 		return INSTANCES[type.ordinal()];
 	}
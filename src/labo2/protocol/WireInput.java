@@ -0,0 +1,63 @@
+package labo2.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A data input aware of the version of the wire format being read.
+ * This is the counterpart of WireOutput.
+ */
+final class WireInput extends DataInputStream {
+	/**
+	 * Version of the format being read
+	 */
+	int version;
+
+	WireInput(InputStream input, int version) {
+		super(input);
+		this.version = version;
+	}
+
+	/**
+	 * Reads a varint written by WireOutput.writeVarInt.
+	 */
+	int readVarInt() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a varint written by WireOutput.writeVarLong.
+	 */
+	long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	int readPort() throws IOException {
+		return (version == Protocol.V1) ? readInt() : readVarInt();
+	}
+
+	long readCounter() throws IOException {
+		return (version == Protocol.V1) ? readLong() : readVarLong();
+	}
+
+	int readSeq() throws IOException {
+		return (version == Protocol.V1) ? readInt() : readVarInt();
+	}
+
+	int readCount() throws IOException {
+		return (version == Protocol.V1) ? readUnsignedShort() : readVarInt();
+	}
+}
@@ -0,0 +1,89 @@
+package labo2.protocol;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A data output aware of the version of the wire format being written.
+ * <p>
+ * Version 1 writes every field with a fixed width. Version 2 writes small
+ * unsigned fields, such as ports, counters, sequence numbers and list sizes,
+ * as varints: seven bits per byte, least significant group first, the high
+ * bit set on every byte but the last. Fields that are uniformly distributed,
+ * such as service ids, hashes and session ids, keep a fixed width in both
+ * versions since a varint would only make them longer.
+ */
+final class WireOutput extends DataOutputStream {
+	/**
+	 * Version of the format being written
+	 */
+	int version;
+
+	WireOutput(OutputStream output, int version) {
+		super(output);
+		this.version = version;
+	}
+
+	/**
+	 * Resets the number of bytes written, as returned by size().
+	 */
+	void resetSize() {
+		written = 0;
+	}
+
+	/**
+	 * Writes an unsigned int as a varint, in any version.
+	 */
+	void writeVarInt(int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		write(value);
+	}
+
+	/**
+	 * Writes an unsigned long as a varint, in any version.
+	 */
+	void writeVarLong(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			write(((int) value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		write((int) value);
+	}
+
+	/**
+	 * Writes a port: 4 bytes in version 1, a varint in version 2.
+	 */
+	void writePort(int port) throws IOException {
+		if (version == Protocol.V1) writeInt(port);
+		else writeVarInt(port);
+	}
+
+	/**
+	 * Writes a non-negative counter: 8 bytes in version 1, a varint in version 2.
+	 */
+	void writeCounter(long counter) throws IOException {
+		if (version == Protocol.V1) writeLong(counter);
+		else writeVarLong(counter);
+	}
+
+	/**
+	 * Writes a non-negative sequence number: 4 bytes in version 1, a varint
+	 * in version 2.
+	 */
+	void writeSeq(int seq) throws IOException {
+		if (version == Protocol.V1) writeInt(seq);
+		else writeVarInt(seq);
+	}
+
+	/**
+	 * Writes the size of a list: 2 bytes in version 1, a varint in version 2.
+	 */
+	void writeCount(int count) throws IOException {
+		if (version == Protocol.V1) writeShort(count);
+		else writeVarInt(count);
+	}
+}
@@ -0,0 +1,172 @@
+package labo2.resolver;
+
+import labo2.protocol.ListDigestMessage;
+import labo2.protocol.ListRepairMessage;
+import labo2.protocol.Message;
+import labo2.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background anti-entropy between resolvers.
+ * <p>
+ * Periodically, the resolver sends the digests of its directory buckets to a
+ * random live peer. The peer replies with the instances of every bucket whose
+ * digest differs, followed by its own digests, to which the resolver replies
+ * in turn with its instances of the buckets that differ. Repair traffic is
+ * thus proportional to the number of diverging buckets, not to the size of
+ * the directory.
+ * <p>
+ * The content of the differing buckets is sent along with the causal context
+ * of the sender, possibly in many parts. Once every part is received, the
+ * buckets are merged into the directory and the resulting mutations are
+ * replicated to other resolvers.
+ * <p>
+ * The interval is read from the labo2.antientropy.interval system property,
+ * in milliseconds (0 disables anti-entropy).
+ */
+class AntiEntropy {
+	/**
+	 * Default time between two anti-entropy rounds: 10 sec.
+	 */
+	static final long DEFAULT_INTERVAL = 10000;
+
+	private final Logger log;
+	private final Membership membership;
+	private final EventLoop loop;
+	private final Directory directory;
+	private final Replicator replicator;
+	private final long interval;
+	private final Random random = new Random();
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+
+	/**
+	 * A repair being received.
+	 */
+	private static class Repair {
+		final long round;
+		final ListRepairMessage[] parts;
+		int received = 0;
+
+		Repair(long round, int parts) {
+			this.round = round;
+			this.parts = new ListRepairMessage[parts];
+		}
+	}
+
+	/**
+	 * Repair being received from each peer
+	 */
+	private final Map<InetSocketAddress, Repair> repairs = new HashMap<>();
+
+	/**
+	 * Constructs a new anti-entropy process using the configuration from
+	 * system properties.
+	 *
+	 * @param log        the logger to use
+	 * @param loop       the event loop used to send messages
+	 * @param membership the membership giving the live peers
+	 * @param directory  the directory to repair
+	 * @param replicator the replicator used to replicate repairs
+	 */
+	AntiEntropy(Logger log, EventLoop loop, Membership membership, Directory directory, Replicator replicator) {
+		this.log = log;
+		this.membership = membership;
+		this.loop = loop;
+		this.directory = directory;
+		this.replicator = replicator;
+		this.interval = Long.getLong("labo2.antientropy.interval", DEFAULT_INTERVAL);
+	}
+
+	/**
+	 * Starts anti-entropy rounds.
+	 */
+	void start() {
+		if (interval <= 0) return;
+		scheduler.scheduleWithFixedDelay(this::round, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Sends the digests of the directory to a random live peer, if any.
+	 */
+	private void round() {
+		List<InetSocketAddress> peers = membership.peers();
+		if (peers.isEmpty()) return;
+		try {
+			loop.send(new ListDigestMessage(false, directory.digests()), peers.get(random.nextInt(peers.size())));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Handles digests received from a peer.
+	 * This method is thread-safe.
+	 *
+	 * @param message the digests of the peer
+	 * @param sender  the address of the peer
+	 * @throws IOException
+	 */
+	void digest(ListDigestMessage message, InetSocketAddress sender) throws IOException {
+		long[] digests = directory.digests();
+		if (Arrays.equals(digests, message.digests)) return;
+
+		long buckets = directory.diverging(message.digests);
+		Directory.Changes content = directory.buckets(buckets);
+		log.printf("Directory differs from %s, sending %d repair entries\n", sender, content.entries.size());
+		for (ListRepairMessage repair : ListRepairMessage.split(random.nextLong(), content.clock, buckets, content.entries)) {
+			loop.send(repair, sender);
+		}
+		if (!message.reply) loop.send(new ListDigestMessage(true, digests), sender);
+	}
+
+	/**
+	 * Handles a part of a repair received from a peer.
+	 * The repair is merged once every part of it has been received.
+	 * This method is thread-safe.
+	 *
+	 * @param message the repair part
+	 * @param sender  the address of the peer
+	 * @throws IOException
+	 */
+	synchronized void repair(ListRepairMessage message, InetSocketAddress sender) throws IOException {
+		Repair repair = repairs.get(sender);
+		if (repair == null || repair.round != message.round) {
+			// A new round supersedes any incomplete one
+			repair = new Repair(message.round, message.parts);
+			repairs.put(sender, repair);
+		}
+		if (message.part >= repair.parts.length || repair.parts[message.part] != null) return;
+		repair.parts[message.part] = message;
+		if (++repair.received < repair.parts.length) return;
+		repairs.remove(sender);
+
+		List<Message> entries = new ArrayList<>();
+		for (ListRepairMessage part : repair.parts) {
+			entries.addAll(part.entries);
+		}
+		List<Message> mutations = directory.merge(entries, message.clock, message.buckets);
+		log.printf("Merged %d repair entries from %s, %d change(s)\n", entries.size(), sender, mutations.size());
+		for (Message mutation : mutations) {
+			replicator.replicate(mutation);
+		}
+	}
+
+	/**
+	 * Stops anti-entropy rounds.
+	 */
+	void close() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,141 @@
+package labo2.resolver;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open-addressing hash table of services, indexed by their 32-bit id.
+ * <p>
+ * Values carry their own id, so a slot is a single reference: lookup is a
+ * linear probe over one array, without boxing the id nor following a chain
+ * of nodes. The table doubles as soon as it is three quarters full, so a
+ * probe stays short whatever the number of services.
+ * <p>
+ * Lookups never take a lock. Insertions must be serialized by the caller.
+ * A new value is written to a free slot of the current table, and a grown
+ * table is filled before being published. A concurrent lookup thus either
+ * sees a fully constructed value, thanks to its final id, or misses it as if
+ * it happened before the insertion. Values are never removed.
+ *
+ * @param <V> the type of the values
+ */
+class Catalog<V extends Catalog.Keyed> implements Iterable<V> {
+	/**
+	 * A value of the catalog.
+	 */
+	interface Keyed {
+		/**
+		 * Returns the id of the value, which must be a final field.
+		 */
+		int id();
+	}
+
+	/**
+	 * Initial number of slots, a power of two.
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Slots of the table, null if free
+	 */
+	private volatile Keyed[] table = new Keyed[INITIAL_CAPACITY];
+
+	/**
+	 * Number of values, guarded by the caller
+	 */
+	private int size = 0;
+
+	/**
+	 * Returns the first slot to probe for an id.
+	 */
+	private static int slot(int id, int mask) {
+		int h = id * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * Returns the value with the given id.
+	 * This method is thread-safe.
+	 *
+	 * @param id the id
+	 * @return the value, or null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	V get(int id) {
+		Keyed[] table = this.table;
+		int mask = table.length - 1;
+		for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+			Keyed value = table[i];
+			if (value == null || value.id() == id) return (V) value;
+		}
+	}
+
+	/**
+	 * Inserts a value whose id is not already in the catalog.
+	 *
+	 * @param value the value
+	 */
+	void put(V value) {
+		if ((size + 1) * 4L > table.length * 3L) table = grow(table);
+		insert(table, value);
+		size++;
+	}
+
+	/**
+	 * Writes a value in the first free slot of its probe sequence.
+	 */
+	private static void insert(Keyed[] table, Keyed value) {
+		int mask = table.length - 1;
+		int i = slot(value.id(), mask);
+		while (table[i] != null) i = (i + 1) & mask;
+		table[i] = value;
+	}
+
+	/**
+	 * Returns a copy of a table with twice as many slots.
+	 */
+	private static Keyed[] grow(Keyed[] table) {
+		Keyed[] grown = new Keyed[table.length * 2];
+		for (Keyed value : table) {
+			if (value != null) insert(grown, value);
+		}
+		return grown;
+	}
+
+	/**
+	 * Returns the number of values.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Iterates over the values of the current table, in slot order.
+	 */
+	@Override
+	public Iterator<V> iterator() {
+		Keyed[] table = this.table;
+		return new Iterator<V>() {
+			private int next = advance(0);
+
+			private int advance(int from) {
+				while (from < table.length && table[from] == null) from++;
+				return from;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < table.length;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public V next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				V value = (V) table[next];
+				next = advance(next + 1);
+				return value;
+			}
+		};
+	}
+}
@@ -0,0 +1,140 @@
+package labo2.resolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * The set of dots seen by a directory, whether their instance is still in
+ * the directory or was removed since.
+ * <p>
+ * The set is stored compactly as a clock, holding for every resolver the
+ * counter up to which every dot of that resolver has been seen, and a cloud
+ * of the dots seen out of order. Dots of the cloud are folded into the clock
+ * as soon as the dots before them are seen. The clock grows as resolvers with
+ * higher ids join the group.
+ * <p>
+ * This class is not thread-safe, it is guarded by the directory lock.
+ */
+class CausalContext {
+	private long[] clock = new long[RESOLVERS.length];
+	private final Set<Dot> cloud = new HashSet<>();
+
+	/**
+	 * Highest counter seen for every resolver
+	 */
+	private long[] top = new long[RESOLVERS.length];
+
+	/**
+	 * Grows the clock to hold the counter of the given resolver.
+	 */
+	private void ensure(int origin) {
+		if (origin < clock.length) return;
+		clock = Arrays.copyOf(clock, origin + 1);
+		top = Arrays.copyOf(top, origin + 1);
+	}
+
+	/**
+	 * Returns true if the given dot was seen.
+	 */
+	boolean contains(Dot dot) {
+		return (dot.origin < clock.length && dot.counter <= clock[dot.origin]) || cloud.contains(dot);
+	}
+
+	/**
+	 * Adds a dot to the context.
+	 *
+	 * @param dot the dot
+	 * @return true if the dot was not already in the context
+	 */
+	boolean add(Dot dot) {
+		if (contains(dot)) return false;
+		ensure(dot.origin);
+		top[dot.origin] = Math.max(top[dot.origin], dot.counter);
+		if (dot.counter == clock[dot.origin] + 1) {
+			clock[dot.origin]++;
+			fold(dot.origin);
+		} else {
+			cloud.add(dot);
+		}
+		return true;
+	}
+
+	/**
+	 * Creates and adds a new dot for the given resolver.
+	 *
+	 * @param origin the resolver index
+	 * @return the new dot
+	 */
+	Dot next(byte origin) {
+		ensure(origin);
+		Dot dot = new Dot(origin, top[origin] + 1);
+		add(dot);
+		return dot;
+	}
+
+	/**
+	 * Merges the clock of another context into this one.
+	 *
+	 * @param other the other clock
+	 * @return true if this context changed
+	 */
+	boolean merge(long[] other) {
+		boolean changed = false;
+		ensure(other.length - 1);
+		for (int i = 0; i < other.length; i++) {
+			if (other[i] > clock[i]) {
+				byte origin = (byte) i;
+				clock[i] = other[i];
+				top[i] = Math.max(top[i], other[i]);
+				cloud.removeIf(dot -> dot.origin == origin && dot.counter <= other[origin]);
+				fold(origin);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Moves dots following the clock of the given resolver out of the cloud.
+	 */
+	private void fold(byte origin) {
+		while (!cloud.isEmpty() && cloud.remove(new Dot(origin, clock[origin] + 1))) {
+			clock[origin]++;
+		}
+	}
+
+	/**
+	 * Returns a copy of the clock.
+	 */
+	long[] clock() {
+		return clock.clone();
+	}
+
+	/**
+	 * Returns a copy of the cloud.
+	 */
+	List<Dot> cloud() {
+		return new ArrayList<>(cloud);
+	}
+
+	/**
+	 * Replaces the content of this context.
+	 *
+	 * @param clock the clock
+	 * @param cloud the dots seen out of order
+	 */
+	void restore(long[] clock, List<Dot> cloud) {
+		Arrays.fill(this.clock, 0);
+		Arrays.fill(top, 0);
+		this.cloud.clear();
+		merge(clock);
+		for (Dot dot : cloud) {
+			add(dot);
+		}
+	}
+}
@@ -0,0 +1,739 @@
+package labo2.resolver;
+
+import labo2.protocol.ListAddMessage;
+import labo2.protocol.ListRemoveMessage;
+import labo2.protocol.Message;
+import labo2.protocol.ServiceOfferView;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The services directory of a resolver.
+ * <p>
+ * The directory is shared by every worker of the resolver and all its
+ * methods are thread-safe.
+ * <p>
+ * Services are indexed by their 32-bit id in an open-addressing catalog,
+ * created on their first registration, so any number of service types is
+ * supported and finding a service is constant-time. Instances themselves are
+ * packed in an InstanceTable, indexed by service and address, and each
+ * service lists the table slots of its instances. No object is kept per
+ * instance: addresses and instances are only materialized when leaving the
+ * directory.
+ * <p>
+ * Resolution is served from an immutable snapshot of the encoded
+ * SERVICE_OFFER reply of each instance, next to a shared encoding of the
+ * unavailable reply. Mutations only invalidate the snapshot, which is rebuilt
+ * once by the next resolve. Outside of this rebuild, resolving an instance
+ * never takes a lock nor encodes anything: the round-robin rotation is an
+ * atomic counter used as an index into the current snapshot, whose bytes
+ * are sent as is.
+ * <p>
+ * The directory is an observed-remove set replicated between resolvers.
+ * Every registration is tagged with a unique dot, and a removal only removes
+ * the dots observed by the resolver that issued it: a registration racing
+ * with a removal on another resolver wins. Every dot ever seen is kept in a
+ * causal context, so a removal overtaking the registration it removes is
+ * never undone by the late registration. Mutations thus commute and every
+ * replica converges whatever the order in which they are applied. Full
+ * directories are merged rather than replaced: an instance is removed if the
+ * other directory has seen its dot but no longer has it.
+ * <p>
+ * Every mutation is stamped with a monotonically increasing version and kept
+ * in a bounded mutation log, allowing other resolvers to only fetch changes
+ * since the last version they know. Versions are only meaningful within an
+ * epoch, a random identifier of the directory history.
+ * <p>
+ * For anti-entropy, instances are also split in BUCKETS buckets by hash of
+ * their service and address. Each bucket has a digest, the XOR of the hashes
+ * of its dots, maintained incrementally on every mutation.
+ * Comparing digests of two directories locates the buckets that differ
+ * without transferring their content.
+ */
+class Directory {
+	/**
+	 * Number of mutations kept in the log.
+	 */
+	static final int LOG_SIZE = 65536;
+
+	/**
+	 * Number of anti-entropy buckets. Bucket sets are exchanged as a single
+	 * 64-bit bitmap.
+	 */
+	static final int BUCKET_BITS = 6;
+	static final int BUCKETS = 1 << BUCKET_BITS;
+
+	/**
+	 * Encoded offer replied when no instance is available. Must not be modified.
+	 */
+	static final byte[] UNAVAILABLE = unavailable();
+
+	/**
+	 * Per-thread view and buffer decoding offers in request()
+	 */
+	private static final ThreadLocal<OfferReader> READERS = ThreadLocal.withInitial(OfferReader::new);
+
+	/**
+	 * The content of the directory for a synchronization transfer.
+	 */
+	static class Changes {
+		final long epoch;
+		final long version;
+		final boolean delta;
+		final List<Message> entries;
+		final long[] clock;
+		final List<Dot> cloud;
+
+		Changes(long epoch, long version, boolean delta, List<Message> entries, long[] clock, List<Dot> cloud) {
+			this.epoch = epoch;
+			this.version = version;
+			this.delta = delta;
+			this.entries = entries;
+			this.clock = clock;
+			this.cloud = cloud;
+		}
+	}
+
+	/**
+	 * A reusable view over a copy of an offer.
+	 */
+	private static class OfferReader {
+		final ByteBuffer buffer = ByteBuffer.allocate(ServiceOfferView.SIZE);
+		final ServiceOfferView view = new ServiceOfferView();
+	}
+
+	/**
+	 * Instances of a single service.
+	 */
+	private static class Service implements Catalog.Keyed {
+		/**
+		 * Id of the service
+		 */
+		final int id;
+
+		/**
+		 * Table slots of the instances, in the first count elements, guarded by
+		 * the directory lock
+		 */
+		int[] slots = new int[4];
+		int count = 0;
+
+		/**
+		 * Current immutable snapshot of the encoded offer of each instance,
+		 * null if invalidated
+		 */
+		volatile byte[][] snapshot = new byte[0][];
+
+		/**
+		 * Round-robin cursor
+		 */
+		final AtomicInteger cursor = new AtomicInteger();
+
+		Service(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public int id() {
+			return id;
+		}
+
+		/**
+		 * Adds the instance of a slot to the service.
+		 */
+		void add(InstanceTable table, int slot) {
+			if (count == slots.length) slots = Arrays.copyOf(slots, count * 2);
+			table.position(slot, count);
+			slots[count++] = slot;
+			snapshot = null;
+		}
+
+		/**
+		 * Removes the instance of a slot from the service, moving the last
+		 * instance in its place.
+		 */
+		void remove(InstanceTable table, int slot) {
+			int position = table.position(slot);
+			int last = slots[--count];
+			slots[position] = last;
+			table.position(last, position);
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Index of the resolver owning this directory, origin of its dots
+	 */
+	private final byte origin;
+
+	/**
+	 * Services entries, insertions are guarded by the directory lock
+	 */
+	private final Catalog<Service> services = new Catalog<>();
+
+	/**
+	 * Instances of every service, each with its first dot
+	 */
+	private final InstanceTable table = new InstanceTable();
+
+	/**
+	 * Further dots of instances registered concurrently on many resolvers,
+	 * indexed by table slot
+	 */
+	private final Map<Integer, List<Dot>> extraDots = new HashMap<>();
+
+	/**
+	 * Digests of buckets
+	 */
+	private final long[] digests = new long[BUCKETS];
+
+	/**
+	 * Every dot seen by this directory
+	 */
+	private final CausalContext context = new CausalContext();
+
+	/**
+	 * Epoch of the directory history
+	 */
+	private long epoch = newEpoch();
+
+	/**
+	 * Version of the last mutation
+	 */
+	private long version = 0;
+
+	/**
+	 * Log of recent mutations
+	 */
+	private MutationLog log = new MutationLog(LOG_SIZE, 0);
+
+	/**
+	 * Persistent store journaling mutations, if any
+	 */
+	private Store store;
+
+	/**
+	 * Constructs a new empty directory.
+	 *
+	 * @param origin the index of the resolver owning the directory
+	 */
+	Directory(byte origin) {
+		this.origin = origin;
+	}
+
+	/**
+	 * Generates a new random epoch, never 0.
+	 */
+	private static long newEpoch() {
+		long epoch;
+		do {
+			epoch = new Random().nextLong();
+		} while (epoch == 0);
+		return epoch;
+	}
+
+	/**
+	 * Returns the anti-entropy bucket of an instance.
+	 */
+	static int bucket(int service, int ip, int port) {
+		return ((31 * service + ip + port) * 0x9E3779B9) >>> (32 - BUCKET_BITS);
+	}
+
+	/**
+	 * Returns the hash of a dot of an instance used in bucket digests.
+	 */
+	static long hash(int service, int ip, int port, Dot dot) {
+		long h = ((long) ip << 32)
+			| ((port & 0xFFFFL) << 16)
+			| (dot.origin & 0xFFL);
+		h ^= service * 0xC2B2AE3D27D4EB4FL;
+		h ^= dot.counter * 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+
+	/**
+	 * Records a mutation in the log.
+	 */
+	private void record(Message mutation) {
+		log.append(++version, mutation);
+		if (store != null) store.append(mutation);
+	}
+
+	/**
+	 * Attaches a persistent store, every further mutation is journaled to it.
+	 *
+	 * @param store the store
+	 */
+	synchronized void attach(Store store) {
+		this.store = store;
+	}
+
+	/**
+	 * Adds or removes a dot of an instance from the digest of its bucket.
+	 */
+	private void toggle(int service, int ip, int port, Dot dot) {
+		digests[bucket(service, ip, port)] ^= hash(service, ip, port, dot);
+	}
+
+	/**
+	 * Returns the entry of a service, created on first use.
+	 */
+	private Service service(int id) {
+		Service service = services.get(id);
+		if (service == null) {
+			service = new Service(id);
+			services.put(service);
+		}
+		return service;
+	}
+
+	/**
+	 * Returns the table slot of an instance, or InstanceTable.NONE.
+	 */
+	private int slot(int service, InetSocketAddress address) {
+		return table.find(service, InstanceTable.ip(address), address.getPort());
+	}
+
+	/**
+	 * Adds a dot of an instance.
+	 */
+	private void addDot(int service, InetSocketAddress address, int agentPort, Dot dot) {
+		int ip = InstanceTable.ip(address);
+		int port = address.getPort();
+		int slot = table.find(service, ip, port);
+		if (slot == InstanceTable.NONE) {
+			slot = table.insert(service, ip, port, agentPort, InstanceTable.pack(dot));
+			service(service).add(table, slot);
+		} else {
+			extraDots.computeIfAbsent(slot, s -> new ArrayList<>(1)).add(dot);
+		}
+		toggle(service, ip, port, dot);
+	}
+
+	/**
+	 * Removes a dot of the instance of a slot, and the instance with its last
+	 * dot.
+	 */
+	private void removeDot(int slot, Dot dot) {
+		toggle(table.service(slot), table.ip(slot), table.port(slot), dot);
+		List<Dot> extra = extraDots.get(slot);
+		if (table.dot(slot) == InstanceTable.pack(dot)) {
+			if (extra == null) {
+				services.get(table.service(slot)).remove(table, slot);
+				table.delete(slot);
+				return;
+			}
+			table.dot(slot, InstanceTable.pack(extra.remove(extra.size() - 1)));
+		} else {
+			extra.remove(dot);
+		}
+		if (extra.isEmpty()) extraDots.remove(slot);
+	}
+
+	/**
+	 * Returns the dots of the instance of a slot.
+	 */
+	private List<Dot> dots(int slot) {
+		List<Dot> extra = extraDots.get(slot);
+		List<Dot> dots = new ArrayList<>(extra == null ? 1 : extra.size() + 1);
+		dots.add(InstanceTable.unpack(table.dot(slot)));
+		if (extra != null) dots.addAll(extra);
+		return dots;
+	}
+
+	/**
+	 * Returns true if the instance of a slot has the given dot.
+	 */
+	private boolean hasDot(int slot, Dot dot) {
+		if (table.dot(slot) == InstanceTable.pack(dot)) return true;
+		List<Dot> extra = extraDots.get(slot);
+		return extra != null && extra.contains(dot);
+	}
+
+	/**
+	 * Builds the mutations for a dot of the instance of a slot.
+	 */
+	private ListAddMessage addition(int slot, Dot dot) {
+		return new ListAddMessage(table.service(slot), table.address(slot), table.agentPort(slot),
+			dot.origin, dot.counter);
+	}
+
+	private ListRemoveMessage removal(int slot, Dot dot) {
+		return new ListRemoveMessage(table.service(slot), table.address(slot), dot.origin, dot.counter);
+	}
+
+	/**
+	 * Adds a new service instance to the directory.
+	 * Registering an instance already in the directory does nothing.
+	 *
+	 * @param instance the service instance
+	 * @return the LIST_ADD mutation to replicate, or null if the instance was
+	 * already in the directory
+	 */
+	synchronized ListAddMessage register(ServiceInstance instance) {
+		if (slot(instance.service, instance.address) != InstanceTable.NONE) return null;
+		Dot dot = context.next(origin);
+		addDot(instance.service, instance.address, instance.agentPort, dot);
+		ListAddMessage mutation = new ListAddMessage(instance.service, instance.address, instance.agentPort,
+			dot.origin, dot.counter);
+		record(mutation);
+		return mutation;
+	}
+
+	/**
+	 * Requests a service instance from the directory.
+	 * Instances of the same service are returned in round-robin order.
+	 *
+	 * @param service the service id
+	 * @return the address of one instance of the service, if any is
+	 * available; else null
+	 */
+	InetSocketAddress request(int service) {
+		OfferReader reader = READERS.get();
+		reader.buffer.clear();
+		reader.buffer.put(offer(service)).flip();
+		try {
+			return reader.view.wrap(reader.buffer).address();
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Returns the address of every instance of a service, in offer order.
+	 *
+	 * @param service the service id
+	 * @return the addresses, empty if the service is unknown
+	 */
+	List<InetSocketAddress> instances(int service) {
+		Service entry = services.get(service);
+		if (entry == null) return Collections.emptyList();
+		byte[][] offers = entry.snapshot;
+		if (offers == null) offers = snapshot(entry);
+		ServiceOfferView view = new ServiceOfferView();
+		List<InetSocketAddress> addresses = new ArrayList<>(offers.length);
+		try {
+			for (byte[] offer : offers) {
+				addresses.add(view.wrap(ByteBuffer.wrap(offer)).address());
+			}
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Returns the encoded SERVICE_OFFER reply to a request.
+	 * Instances of the same service are offered in round-robin order.
+	 *
+	 * @param service the service id
+	 * @return the encoded offer of one instance of the service, or
+	 * UNAVAILABLE; the returned array is shared and must not be modified
+	 */
+	byte[] offer(int service) {
+		Service entry = services.get(service);
+		if (entry == null) return UNAVAILABLE;
+		byte[][] offers = entry.snapshot;
+		if (offers == null) offers = snapshot(entry);
+		if (offers.length == 0) return UNAVAILABLE;
+		return offers[Math.floorMod(entry.cursor.getAndIncrement(), offers.length)];
+	}
+
+	/**
+	 * Rebuilds the snapshot of a service after a mutation.
+	 *
+	 * @param service the service entry
+	 * @return the up-to-date snapshot
+	 */
+	private synchronized byte[][] snapshot(Service service) {
+		byte[][] offers = service.snapshot;
+		if (offers == null) {
+			offers = new byte[service.count][];
+			for (int i = 0; i < service.count; i++) {
+				int slot = service.slots[i];
+				offers[i] = encode(table.ip(slot), table.port(slot));
+			}
+			service.snapshot = offers;
+		}
+		return offers;
+	}
+
+	/**
+	 * Encodes the offer of an instance.
+	 */
+	private static byte[] encode(int ip, int port) {
+		ByteBuffer offer = ByteBuffer.allocate(ServiceOfferView.SIZE);
+		ServiceOfferView.write(offer, ip, port);
+		return offer.array();
+	}
+
+	/**
+	 * Encodes the offer replied when no instance is available.
+	 */
+	private static byte[] unavailable() {
+		ByteBuffer offer = ByteBuffer.allocate(ServiceOfferView.UNAVAILABLE_SIZE);
+		ServiceOfferView.write(offer, null);
+		return offer.array();
+	}
+
+	/**
+	 * Finds a service instance by address.
+	 *
+	 * @param service the service id
+	 * @param address the instance address
+	 * @return the instance, or null if the instance is unknown
+	 */
+	synchronized ServiceInstance find(int service, InetSocketAddress address) {
+		int slot = slot(service, address);
+		return (slot != InstanceTable.NONE) ? table.instance(slot) : null;
+	}
+
+	/**
+	 * Removes a service instance from the directory.
+	 *
+	 * @param service the service id
+	 * @param address the instance address
+	 * @return the LIST_REMOVE mutations to replicate, one for every observed
+	 * dot of the instance; empty if the instance was not in the directory
+	 */
+	synchronized List<Message> remove(int service, InetSocketAddress address) {
+		int slot = slot(service, address);
+		if (slot == InstanceTable.NONE) return Collections.emptyList();
+		List<Dot> dots = dots(slot);
+		List<Message> mutations = new ArrayList<>(dots.size());
+		for (Dot dot : dots) {
+			ListRemoveMessage mutation = removal(slot, dot);
+			removeDot(slot, dot);
+			record(mutation);
+			mutations.add(mutation);
+		}
+		return mutations;
+	}
+
+	/**
+	 * Applies a LIST_ADD or LIST_REMOVE mutation to the directory.
+	 * Mutations may be applied in any order and more than once.
+	 *
+	 * @param mutation the mutation
+	 * @return true if the directory changed
+	 */
+	synchronized boolean apply(Message mutation) {
+		switch (mutation.type()) {
+			case LIST_ADD: {
+				ListAddMessage add = (ListAddMessage) mutation;
+				Dot dot = new Dot(add.origin, add.counter);
+				if (!context.add(dot)) return false;
+				addDot(add.service, add.address, add.agentPort, dot);
+				record(mutation);
+				return true;
+			}
+			case LIST_REMOVE: {
+				ListRemoveMessage remove = (ListRemoveMessage) mutation;
+				Dot dot = new Dot(remove.origin, remove.counter);
+				int slot = slot(remove.service, remove.address);
+				boolean changed = context.add(dot);
+				if (slot != InstanceTable.NONE && hasDot(slot, dot)) {
+					removeDot(slot, dot);
+					changed = true;
+				}
+				if (changed) record(mutation);
+				return changed;
+			}
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Merges the content of another directory into this one.
+	 * Only the given buckets are merged, other buckets must be known to be
+	 * identical in both directories.
+	 *
+	 * @param entries the LIST_ADD entries of the buckets in the other directory
+	 * @param clock   the clock of the causal context of the other directory
+	 * @param buckets the bitmap of merged buckets, -1 to merge the full
+	 *                directory
+	 * @return the mutations applied to this directory
+	 */
+	synchronized List<Message> merge(List<Message> entries, long[] clock, long buckets) {
+		List<Message> mutations = new ArrayList<>();
+		Set<Dot> remote = new HashSet<>();
+		for (Message entry : entries) {
+			ListAddMessage add = (ListAddMessage) entry;
+			remote.add(new Dot(add.origin, add.counter));
+		}
+
+		// Remove dots seen by the other directory that it no longer has
+		for (Service service : services) {
+			for (int slot : Arrays.copyOf(service.slots, service.count)) {
+				if ((buckets & (1L << bucket(service.id, table.ip(slot), table.port(slot)))) == 0) continue;
+				for (Dot dot : dots(slot)) {
+					if (dot.origin < clock.length && dot.counter <= clock[dot.origin] && !remote.contains(dot)) {
+						ListRemoveMessage mutation = removal(slot, dot);
+						removeDot(slot, dot);
+						record(mutation);
+						mutations.add(mutation);
+					}
+				}
+			}
+		}
+
+		// Add dots never seen by this directory
+		for (Message entry : entries) {
+			if (apply(entry)) mutations.add(entry);
+		}
+
+		advance(clock);
+		return mutations;
+	}
+
+	/**
+	 * Merges the clock of another causal context into this directory context.
+	 *
+	 * @param clock the other clock
+	 */
+	synchronized void advance(long[] clock) {
+		if (context.merge(clock) && store != null) store.clock(context.clock());
+	}
+
+	/**
+	 * Replaces the content of the directory with a persisted state.
+	 * Mutations before the given version are not in the log.
+	 *
+	 * @param epoch   the epoch of the state
+	 * @param version the version of the state
+	 * @param entries the LIST_ADD entries of the state
+	 * @param clock   the clock of the causal context of the state
+	 * @param cloud   the dots seen out of order in the state
+	 */
+	synchronized void restore(long epoch, long version, List<Message> entries, long[] clock, List<Dot> cloud) {
+		for (Service service : services) {
+			service.count = 0;
+			service.snapshot = null;
+		}
+		table.clear();
+		extraDots.clear();
+		Arrays.fill(digests, 0);
+		context.restore(clock, cloud);
+		for (Message entry : entries) {
+			ListAddMessage add = (ListAddMessage) entry;
+			Dot dot = new Dot(add.origin, add.counter);
+			context.add(dot);
+			addDot(add.service, add.address, add.agentPort, dot);
+		}
+		this.epoch = epoch;
+		this.version = version;
+		this.log = new MutationLog(LOG_SIZE, version);
+	}
+
+	/**
+	 * Returns the full content of the directory, running the given action
+	 * atomically with the capture.
+	 *
+	 * @param action the action to run
+	 * @return the content of the directory
+	 */
+	synchronized Changes capture(Runnable action) {
+		action.run();
+		return changes(0, -1);
+	}
+
+	/**
+	 * Returns the number of instances in the directory.
+	 */
+	synchronized int size() {
+		return table.size();
+	}
+
+	/**
+	 * Returns the changes since the given version, or the full list if the
+	 * epoch does not match or the log no longer goes back that far.
+	 *
+	 * @param epoch the epoch known by the requester
+	 * @param since the version known by the requester, -1 for the full list
+	 * @return the changes
+	 */
+	synchronized Changes changes(long epoch, long since) {
+		if (epoch == this.epoch && since >= 0) {
+			List<Message> mutations = log.since(since);
+			if (mutations != null) {
+				return new Changes(this.epoch, version, true, mutations, context.clock(), context.cloud());
+			}
+		}
+		return buckets(-1L);
+	}
+
+	/**
+	 * Returns the content of the given buckets.
+	 *
+	 * @param buckets the bitmap of buckets, -1 for the full directory
+	 * @return the content of the buckets and the causal context
+	 */
+	synchronized Changes buckets(long buckets) {
+		List<Message> all = new ArrayList<>();
+		for (Service service : services) {
+			for (int i = 0; i < service.count; i++) {
+				int slot = service.slots[i];
+				if ((buckets & (1L << bucket(service.id, table.ip(slot), table.port(slot)))) == 0) continue;
+				for (Dot dot : dots(slot)) {
+					all.add(addition(slot, dot));
+				}
+			}
+		}
+		return new Changes(this.epoch, version, false, all, context.clock(), context.cloud());
+	}
+
+	/**
+	 * Returns a copy of every instance in the directory, in a stable order.
+	 *
+	 * @return the list of instances
+	 */
+	synchronized List<ServiceInstance> instances() {
+		List<ServiceInstance> all = new ArrayList<>(table.size());
+		for (Service service : services) {
+			for (int i = 0; i < service.count; i++) {
+				all.add(table.instance(service.slots[i]));
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Returns the digests of every bucket.
+	 *
+	 * @return the digests
+	 */
+	synchronized long[] digests() {
+		return digests.clone();
+	}
+
+	/**
+	 * Returns the buckets whose digest differs from the given digests of
+	 * another directory.
+	 *
+	 * @param digests the digests of the other directory
+	 * @return the bitmap of differing buckets
+	 */
+	synchronized long diverging(long[] digests) {
+		if (digests.length != BUCKETS) return -1L;
+		long buckets = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			if (this.digests[b] != digests[b]) buckets |= 1L << b;
+		}
+		return buckets;
+	}
+}
@@ -0,0 +1,30 @@
+package labo2.resolver;
+
+/**
+ * A unique tag of an instance addition: the index of the resolver where the
+ * instance was registered and a counter unique to that resolver.
+ */
+class Dot {
+	final byte origin;
+	final long counter;
+
+	Dot(byte origin, long counter) {
+		this.origin = origin;
+		this.counter = counter;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == null || !(o instanceof Dot)) {
+			return false;
+		} else {
+			Dot other = (Dot) o;
+			return origin == other.origin && counter == other.counter;
+		}
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * origin + Long.hashCode(counter);
+	}
+}
@@ -0,0 +1,448 @@
+package labo2.resolver;
+
+import labo2.protocol.Codec;
+import labo2.protocol.Message;
+import labo2.protocol.Protocol;
+import labo2.protocol.ServiceRequestView;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking datagram engine used by the resolver.
+ * <p>
+ * The loop owns a DatagramChannel registered on a Selector. Each time the
+ * channel becomes readable, incoming datagrams are drained in bursts without
+ * ever blocking and handed to the message handler. Replies are not sent
+ * inline: they are queued in an outbox and flushed in batches once the burst
+ * has been handled. If the kernel send buffer is full, the loop switches to
+ * write interest until the outbox can be drained again.
+ * <p>
+ * Message handlers and tasks submitted with execute() always run on the loop
+ * thread, sending a message is allowed from any thread.
+ * <p>
+ * Version 1 SERVICE_REQUEST datagrams, the bulk of the traffic, may take a
+ * fast path: they are handed to a request handler through a reused
+ * ServiceRequestView instead of being decoded into a message, and the offer
+ * it returns is sent at once from a reused buffer when the outbox is empty.
+ * <p>
+ * Closing the loop stops reading datagrams, but the outbox is flushed one
+ * last time before the channel is closed, so that messages queued by the
+ * owner of the loop before closing it are not lost.
+ * <p>
+ * Datagrams of any wire format version are accepted, and every message of a
+ * version 2 envelope is handed to the handler in turn. Messages are sent in
+ * the version negotiated with their destination: the version advertised by
+ * the peer through negotiate(), or the version of the datagram being handled
+ * when replying to its sender, else version 1. Replies to a datagram
+ * carrying a correlation id carry the same id, so that a client can match
+ * them with its pending requests. Handlers replying later, outside of
+ * handle(), capture the reply context with reply() first.
+ */
+class EventLoop {
+	/**
+	 * Handler for incoming messages.
+	 */
+	@FunctionalInterface
+	interface Handler {
+		void handle(Message message, InetSocketAddress sender) throws IOException;
+	}
+
+	/**
+	 * Handler for incoming version 1 service requests.
+	 */
+	@FunctionalInterface
+	interface RequestHandler {
+		/**
+		 * Handles a request, the view is only valid during the call.
+		 *
+		 * @return the encoded reply, or null to send no reply
+		 */
+		byte[] handle(ServiceRequestView request, InetSocketAddress sender) throws IOException;
+	}
+
+	/**
+	 * Maximum number of datagrams read before the outbox is flushed.
+	 */
+	private static final int READ_BATCH = 256;
+
+	/**
+	 * Size of the receive buffer, large enough for any datagram.
+	 */
+	private static final int BUFFER_SIZE = 65536;
+
+	/**
+	 * Maximum time spent flushing the outbox when closing the loop.
+	 */
+	private static final long CLOSE_TIMEOUT = 500;
+
+	/**
+	 * The context of a reply to a received datagram.
+	 */
+	static final class Reply {
+		final InetSocketAddress address;
+		final int version;
+		final int correlation;
+
+		private Reply(InetSocketAddress address, int version, int correlation) {
+			this.address = address;
+			this.version = version;
+			this.correlation = correlation;
+		}
+	}
+
+	/**
+	 * A queued outgoing datagram.
+	 */
+	private static class Datagram {
+		final ByteBuffer data;
+		final InetSocketAddress address;
+
+		Datagram(ByteBuffer data, InetSocketAddress address) {
+			this.data = data;
+			this.address = address;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+
+	/**
+	 * Receive buffer, reused for every datagram
+	 */
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Codec decoding incoming datagrams in place, only used by the loop thread
+	 */
+	private final Codec codec = new Codec();
+
+	/**
+	 * View over requests taking the fast path, and buffer for their replies,
+	 * only used by the loop thread
+	 */
+	private final ServiceRequestView request = new ServiceRequestView();
+	private final ByteBuffer replyBuffer = ByteBuffer.allocate(Protocol.MTU);
+
+	/**
+	 * Wire format version negotiated with each peer
+	 */
+	private final Map<InetSocketAddress, Integer> versions = new ConcurrentHashMap<>();
+
+	/**
+	 * Sender, version and correlation id of the datagram being handled, only
+	 * used by the loop thread
+	 */
+	private InetSocketAddress current;
+	private int currentVersion;
+	private int currentCorrelation;
+
+	/**
+	 * Pending outgoing datagrams
+	 */
+	private final Queue<Datagram> outbox = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Pending tasks to execute on the loop thread
+	 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The thread currently running the loop
+	 */
+	private volatile Thread thread;
+
+	/**
+	 * Set once close() is called, the loop then exits after a last flush
+	 */
+	private volatile boolean closing = false;
+
+	/**
+	 * Released once the loop has exited
+	 */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/**
+	 * Constructs a new event loop using the given bound channel.
+	 *
+	 * @param channel the datagram channel, must already be bound
+	 * @throws IOException
+	 */
+	EventLoop(DatagramChannel channel) throws IOException {
+		this.channel = channel;
+		this.selector = Selector.open();
+		channel.configureBlocking(false);
+		this.key = channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Returns the underlying channel.
+	 */
+	DatagramChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * Runs the loop until close() is called.
+	 *
+	 * @param handler the handler for incoming messages
+	 * @throws IOException
+	 */
+	void run(Handler handler) throws IOException {
+		run(handler, null);
+	}
+
+	/**
+	 * Runs the loop until close() is called, with a fast path for version 1
+	 * service requests.
+	 *
+	 * @param handler  the handler for incoming messages
+	 * @param requests the handler for version 1 service requests, or null to
+	 *                 hand them to the message handler
+	 * @throws IOException
+	 */
+	void run(Handler handler, RequestHandler requests) throws IOException {
+		thread = Thread.currentThread();
+		try {
+			while (!closing) {
+				selector.select();
+				selector.selectedKeys().clear();
+				runTasks();
+				drain(handler, requests);
+				flush();
+			}
+			runTasks();
+			finish();
+		} catch (ClosedSelectorException | ClosedChannelException | CancelledKeyException closed) {
+			if (channel.isOpen()) throw closed;
+		} finally {
+			thread = null;
+			stopped.countDown();
+		}
+	}
+
+	/**
+	 * Flushes the outbox until it is empty, waiting for the socket buffer to
+	 * drain if needed, for at most CLOSE_TIMEOUT.
+	 */
+	private void finish() throws IOException {
+		long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+		flush();
+		while (!outbox.isEmpty()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return;
+			selector.select(remaining);
+			selector.selectedKeys().clear();
+			flush();
+		}
+	}
+
+	/**
+	 * Reads every pending datagram, up to READ_BATCH of them.
+	 */
+	private void drain(Handler handler, RequestHandler requests) throws IOException {
+		for (int i = 0; i < READ_BATCH; i++) {
+			buffer.clear();
+			InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+			if (sender == null) return;
+			buffer.flip();
+			if (requests != null && buffer.remaining() == ServiceRequestView.SIZE && ServiceRequestView.is(buffer)) {
+				byte[] reply = requests.handle(request.wrap(buffer), sender);
+				if (reply != null) sendNow(reply, sender);
+				continue;
+			}
+			current = sender;
+			try {
+				do {
+					Message message = codec.decode(buffer);
+					currentVersion = codec.version();
+					currentCorrelation = codec.correlation();
+					handler.handle(message, sender);
+				} while (codec.more());
+			} finally {
+				current = null;
+			}
+		}
+		// There may be more datagrams waiting, make sure the next select returns
+		selector.wakeup();
+	}
+
+	/**
+	 * Sends queued datagrams until the outbox is empty or the socket buffer is full.
+	 */
+	private void flush() throws IOException {
+		Datagram datagram;
+		while ((datagram = outbox.peek()) != null) {
+			if (channel.send(datagram.data, datagram.address) == 0) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+			outbox.poll();
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Sends a payload from the loop thread, at once if nothing is queued
+	 * before it and the socket buffer has room, else through the outbox.
+	 */
+	private void sendNow(byte[] data, InetSocketAddress address) throws IOException {
+		if (outbox.isEmpty()) {
+			replyBuffer.clear();
+			replyBuffer.put(data).flip();
+			if (channel.send(replyBuffer, address) != 0) return;
+		}
+		send(data, address);
+	}
+
+	/**
+	 * Executes pending tasks.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Queues a message for sending to the given address.
+	 * This method is thread-safe.
+	 *
+	 * @param message the message to send
+	 * @param address the address to which the message should be sent
+	 * @throws IOException
+	 */
+	void send(Message message, InetSocketAddress address) throws IOException {
+		if (replying(address) && currentCorrelation != Codec.NO_CORRELATION) {
+			send(Message.serialize(message, version(address), currentCorrelation), address);
+		} else {
+			send(Message.serialize(message, version(address)), address);
+		}
+	}
+
+	/**
+	 * Queues a reply for sending.
+	 * This method is thread-safe.
+	 *
+	 * @param message the reply
+	 * @param reply   the context of the reply, as captured by reply()
+	 * @throws IOException
+	 */
+	void send(Message message, Reply reply) throws IOException {
+		int version = Math.max(reply.version, versions.getOrDefault(reply.address, Protocol.V1));
+		send(Message.serialize(message, version, reply.correlation), reply.address);
+	}
+
+	/**
+	 * Captures the context of a reply to the datagram being handled.
+	 * This method must be called from a handler.
+	 *
+	 * @return the reply context
+	 */
+	Reply reply() {
+		if (Thread.currentThread() != thread || current == null) throw new IllegalStateException();
+		return new Reply(current, currentVersion, currentCorrelation);
+	}
+
+	/**
+	 * Tells whether the datagram being handled carries a correlation id,
+	 * in which case raw payloads cannot be used as a reply.
+	 */
+	boolean correlated() {
+		return Thread.currentThread() == thread && current != null && currentCorrelation != Codec.NO_CORRELATION;
+	}
+
+	/**
+	 * Tells whether a message to the given address is a reply to the
+	 * datagram being handled.
+	 */
+	private boolean replying(InetSocketAddress address) {
+		return Thread.currentThread() == thread && address.equals(current);
+	}
+
+	/**
+	 * Records the highest wire format version supported by a peer.
+	 * This method is thread-safe.
+	 *
+	 * @param address the address of the peer
+	 * @param version the version advertised by the peer
+	 */
+	void negotiate(InetSocketAddress address, int version) {
+		versions.put(address, Math.min(version, Protocol.VERSION));
+	}
+
+	/**
+	 * Returns the wire format version to use with a peer.
+	 * This method is thread-safe.
+	 *
+	 * @param address the address of the peer
+	 * @return the negotiated version
+	 */
+	int version(InetSocketAddress address) {
+		int version = versions.getOrDefault(address, Protocol.V1);
+		if (replying(address)) {
+			version = Math.max(version, currentVersion);
+		}
+		return version;
+	}
+
+	/**
+	 * Queues a raw payload for sending to the given address.
+	 * This method is thread-safe.
+	 *
+	 * @param data    the payload to send
+	 * @param address the address to which the payload should be sent
+	 */
+	void send(byte[] data, InetSocketAddress address) {
+		outbox.add(new Datagram(ByteBuffer.wrap(data), address));
+		if (Thread.currentThread() != thread) selector.wakeup();
+	}
+
+	/**
+	 * Schedules the given task for execution on the loop thread.
+	 * This method is thread-safe.
+	 *
+	 * @param task the task to execute
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the loop and closes the channel.
+	 * Unless called from the loop thread, waits for the loop to flush its
+	 * outbox one last time.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		closing = true;
+		selector.wakeup();
+		Thread running = thread;
+		if (running != null && running != Thread.currentThread()) {
+			try {
+				stopped.await(2 * CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		channel.close();
+		selector.close();
+	}
+}
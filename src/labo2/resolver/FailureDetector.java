@@ -0,0 +1,192 @@
+package labo2.resolver;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An adaptive failure detector for service agents, based on phi-accrual.
+ * <p>
+ * The detector keeps a sliding window of ping round-trip times for every
+ * agent. Instead of a binary alive / dead verdict after a fixed timeout, it
+ * computes a suspicion level phi for a pending probe: phi = -log10(P) where P
+ * is the probability, under a normal distribution fitted on the history, that
+ * a reply would still arrive later than the time already elapsed. A phi of 1
+ * means 10% chances of a false suspicion, a phi of 8 means 10^-8.
+ * <p>
+ * A ping times out when phi reaches THRESHOLD. The resulting timeout is
+ * bounded between MIN_TIMEOUT and MAX_TIMEOUT, and MAX_TIMEOUT is used for
+ * agents without any history. The lower bound follows the minimum
+ * retransmission timeout of TCP: below it, a scheduling pause of a healthy
+ * agent is indistinguishable from a crash.
+ * <p>
+ * All methods are thread-safe.
+ */
+class FailureDetector {
+	/**
+	 * Suspicion level at which an agent is considered dead.
+	 */
+	static final double THRESHOLD = 8.0;
+
+	/**
+	 * Bounds of the probe timeout, in milliseconds.
+	 */
+	static final long MIN_TIMEOUT = 200;
+	static final long MAX_TIMEOUT = 1000;
+
+	/**
+	 * Number of RTT samples kept per agent.
+	 */
+	private static final int WINDOW = 100;
+
+	/**
+	 * Lower bound of the standard deviation, in milliseconds. This prevents a
+	 * perfectly regular history from making the detector over-sensitive.
+	 */
+	private static final double MIN_STD_DEV = 5.0;
+
+	/**
+	 * Number of standard deviations above the mean at which phi reaches THRESHOLD.
+	 */
+	private static final double THRESHOLD_DEVIATIONS = deviations(THRESHOLD);
+
+	/**
+	 * RTT history of an agent.
+	 */
+	private static class History {
+		final double[] samples = new double[WINDOW];
+		int count = 0;
+		int next = 0;
+		double sum = 0;
+		double sumSquares = 0;
+
+		/**
+		 * Time at which the pending probe was sent, or -1
+		 */
+		long pending = -1;
+
+		void add(double rtt) {
+			if (count == WINDOW) {
+				double old = samples[next];
+				sum -= old;
+				sumSquares -= old * old;
+			} else {
+				count++;
+			}
+			samples[next] = rtt;
+			next = (next + 1) % WINDOW;
+			sum += rtt;
+			sumSquares += rtt * rtt;
+		}
+
+		double mean() {
+			return sum / count;
+		}
+
+		double stdDev() {
+			double mean = mean();
+			double variance = Math.max(0, sumSquares / count - mean * mean);
+			return Math.max(MIN_STD_DEV, Math.sqrt(variance));
+		}
+	}
+
+	private final Map<InetSocketAddress, History> agents = new HashMap<>();
+
+	/**
+	 * Records that a probe was sent to the given agent.
+	 *
+	 * @param agent the agent address
+	 * @param now   the current time in milliseconds
+	 */
+	synchronized void sent(InetSocketAddress agent, long now) {
+		agents.computeIfAbsent(agent, a -> new History()).pending = now;
+	}
+
+	/**
+	 * Records the reply of an agent to the pending probe.
+	 *
+	 * @param agent the agent address
+	 * @param now   the current time in milliseconds
+	 */
+	synchronized void received(InetSocketAddress agent, long now) {
+		History history = agents.get(agent);
+		if (history != null && history.pending >= 0) {
+			history.add(now - history.pending);
+			history.pending = -1;
+		}
+	}
+
+	/**
+	 * Records that the pending probe of an agent timed out.
+	 *
+	 * @param agent the agent address
+	 */
+	synchronized void lost(InetSocketAddress agent) {
+		History history = agents.get(agent);
+		if (history != null) history.pending = -1;
+	}
+
+	/**
+	 * Forgets everything about an agent.
+	 *
+	 * @param agent the agent address
+	 */
+	synchronized void forget(InetSocketAddress agent) {
+		agents.remove(agent);
+	}
+
+	/**
+	 * Returns the time after which a probe to the given agent should fail.
+	 *
+	 * @param agent the agent address
+	 * @return the timeout in milliseconds
+	 */
+	synchronized long timeout(InetSocketAddress agent) {
+		History history = agents.get(agent);
+		if (history == null || history.count == 0) return MAX_TIMEOUT;
+		long timeout = (long) Math.ceil(history.mean() + THRESHOLD_DEVIATIONS * history.stdDev());
+		return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+	}
+
+	/**
+	 * Returns the current suspicion level of an agent.
+	 * The level is 0 if no probe is pending or if the agent has no history.
+	 *
+	 * @param agent the agent address
+	 * @param now   the current time in milliseconds
+	 * @return the phi value
+	 */
+	synchronized double phi(InetSocketAddress agent, long now) {
+		History history = agents.get(agent);
+		if (history == null || history.count == 0 || history.pending < 0) return 0;
+		return phi(now - history.pending, history.mean(), history.stdDev());
+	}
+
+	/**
+	 * Computes phi for the given elapsed time, using a logistic approximation
+	 * of the normal cumulative distribution function.
+	 */
+	private static double phi(double elapsed, double mean, double stdDev) {
+		double y = (elapsed - mean) / stdDev;
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsed > mean) {
+			return -Math.log10(e / (1.0 + e));
+		} else {
+			return -Math.log10(1.0 - 1.0 / (1.0 + e));
+		}
+	}
+
+	/**
+	 * Finds the number of standard deviations above the mean at which phi
+	 * reaches the given value.
+	 */
+	private static double deviations(double target) {
+		double low = 0, high = 100;
+		for (int i = 0; i < 64; i++) {
+			double mid = (low + high) / 2;
+			if (phi(mid, 0, 1) < target) low = mid;
+			else high = mid;
+		}
+		return high;
+	}
+}
@@ -0,0 +1,114 @@
+package labo2.resolver;
+
+import labo2.utils.Logger;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Proactive liveness checks of registered service instances.
+ * <p>
+ * The heartbeat walks the directory and probes every instance once per
+ * interval through the shared Prober, so dead instances are evicted before
+ * clients hit them. Probes are issued on a fixed tick, at most rate probes per
+ * second, and pings of a tick are sent as a single batch by the prober loop.
+ * <p>
+ * Configuration is read from system properties:
+ * labo2.heartbeat.interval, the time between two probes of the same instance
+ * in milliseconds (0 disables the heartbeat), and labo2.heartbeat.rate, the
+ * maximum number of probes per second.
+ */
+class Heartbeat {
+	/**
+	 * Default time between two probes of the same instance: 5 sec.
+	 */
+	static final long DEFAULT_INTERVAL = 5000;
+
+	/**
+	 * Default maximum number of probes per second.
+	 */
+	static final int DEFAULT_RATE = 10000;
+
+	/**
+	 * Period of the probing tick.
+	 */
+	private static final long TICK = 100;
+
+	private final Logger log;
+	private final Directory directory;
+	private final Prober prober;
+	private final Consumer<ServiceInstance> evict;
+	private final long interval;
+	private final int probesPerTick;
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+
+	/**
+	 * Instances of the current round, and position in it
+	 */
+	private List<ServiceInstance> round = Collections.emptyList();
+	private int cursor = 0;
+	private long roundStart = 0;
+
+	/**
+	 * Constructs a new heartbeat using the configuration from system properties.
+	 *
+	 * @param log       the logger to use
+	 * @param directory the directory to check
+	 * @param prober    the prober used to send pings
+	 * @param evict     called with instances failing to answer a probe
+	 */
+	Heartbeat(Logger log, Directory directory, Prober prober, Consumer<ServiceInstance> evict) {
+		this.log = log;
+		this.directory = directory;
+		this.prober = prober;
+		this.evict = evict;
+		this.interval = Long.getLong("labo2.heartbeat.interval", DEFAULT_INTERVAL);
+		int rate = Integer.getInteger("labo2.heartbeat.rate", DEFAULT_RATE);
+		this.probesPerTick = Math.max(1, (int) (rate * TICK / 1000));
+	}
+
+	/**
+	 * Starts probing instances.
+	 */
+	void start() {
+		if (interval <= 0) return;
+		log.printf("Heartbeat every %d ms, %d probes per tick\n", interval, probesPerTick);
+		scheduler.scheduleAtFixedRate(this::tick, TICK, TICK, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Probes the next batch of instances.
+	 * A new round starts once every instance of the previous one has been
+	 * probed and the interval has elapsed.
+	 */
+	private void tick() {
+		if (cursor >= round.size()) {
+			long now = System.currentTimeMillis();
+			if (now - roundStart < interval) return;
+			round = directory.instances();
+			cursor = 0;
+			roundStart = now;
+		}
+		int end = Math.min(round.size(), cursor + probesPerTick);
+		for (; cursor < end; cursor++) {
+			ServiceInstance instance = round.get(cursor);
+			prober.probe(instance, alive -> {
+				if (!alive) {
+					log.printf("Heartbeat lost for [%d] %s\n", instance.service, instance.address);
+					evict.accept(instance);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the heartbeat.
+	 */
+	void close() {
+		scheduler.shutdownNow();
+	}
+}
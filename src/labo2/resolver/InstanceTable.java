@@ -0,0 +1,280 @@
+package labo2.resolver;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Compact storage of the instances of a directory.
+ * <p>
+ * Instances are not objects but slots in parallel primitive arrays, one
+ * array per field: service id, IPv4 address, port, agent port, first dot and
+ * position of the instance within its service. A million instances thus cost
+ * a few dozen arrays instead of several million objects, and nothing the
+ * garbage collector has to trace. Slots of removed instances are chained in
+ * a free list and reused by the next insertion, arrays only grow when every
+ * slot is in use.
+ * <p>
+ * Instances are indexed by service and address in an open-addressing hash
+ * table of slot numbers, with backward-shift deletion so that removals leave
+ * no tombstones. Addresses are only materialized as InetSocketAddress when
+ * leaving the directory.
+ * <p>
+ * This class is not thread-safe, it is guarded by the directory lock.
+ */
+class InstanceTable {
+	/**
+	 * Marker of a missing slot.
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * Initial number of slots.
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Instance fields, by slot
+	 */
+	private int[] services = new int[INITIAL_CAPACITY];
+	private int[] ips = new int[INITIAL_CAPACITY];
+	private char[] ports = new char[INITIAL_CAPACITY];
+	private char[] agentPorts = new char[INITIAL_CAPACITY];
+	private long[] dots = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Position of the instance within its service, or next free slot if the
+	 * slot is free
+	 */
+	private int[] links = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Number of slots ever used, slots past this one were never allocated
+	 */
+	private int used = 0;
+
+	/**
+	 * First free slot, NONE if every used slot holds an instance
+	 */
+	private int free = NONE;
+
+	/**
+	 * Number of instances
+	 */
+	private int size = 0;
+
+	/**
+	 * Index by service and address: slot number plus one, 0 if empty
+	 */
+	private int[] index = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Packs an IPv4 address as an int.
+	 */
+	static int ip(InetSocketAddress address) {
+		byte[] bytes = address.getAddress().getAddress();
+		if (bytes.length != 4) throw new IllegalArgumentException("Only IPv4 addresses are supported");
+		return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+	}
+
+	/**
+	 * Materializes a packed IPv4 address and port.
+	 */
+	static InetSocketAddress address(int ip, int port) {
+		byte[] bytes = { (byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip };
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+		} catch (UnknownHostException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Packs a dot as a long: origin in the high byte, counter below.
+	 */
+	static long pack(Dot dot) {
+		return ((long) dot.origin << 56) | dot.counter;
+	}
+
+	static Dot unpack(long dot) {
+		return new Dot((byte) (dot >>> 56), dot & 0xFFFFFFFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the first index slot to probe for a service and address.
+	 */
+	private int probe(int service, int ip, int port) {
+		int h = service * 0x9E3779B9 ^ ip * 0x85EBCA6B ^ port * 0xC2B2AE35;
+		return (h ^ (h >>> 16)) & (index.length - 1);
+	}
+
+	/**
+	 * Finds the slot of an instance.
+	 *
+	 * @param service the service id
+	 * @param ip      the packed IPv4 address
+	 * @param port    the port
+	 * @return the slot, or NONE if the instance is not in the table
+	 */
+	int find(int service, int ip, int port) {
+		int mask = index.length - 1;
+		for (int i = probe(service, ip, port); ; i = (i + 1) & mask) {
+			int slot = index[i] - 1;
+			if (slot == NONE) return NONE;
+			if (services[slot] == service && ips[slot] == ip && ports[slot] == port) return slot;
+		}
+	}
+
+	/**
+	 * Inserts an instance which is not already in the table.
+	 *
+	 * @return the slot of the instance
+	 */
+	int insert(int service, int ip, int port, int agentPort, long dot) {
+		int slot;
+		if (free != NONE) {
+			slot = free;
+			free = links[slot];
+		} else {
+			if (used == services.length) grow();
+			slot = used++;
+		}
+		services[slot] = service;
+		ips[slot] = ip;
+		ports[slot] = (char) port;
+		agentPorts[slot] = (char) agentPort;
+		dots[slot] = dot;
+		links[slot] = 0;
+
+		if ((size + 1) * 2L > index.length) rehash(index.length * 2);
+		int mask = index.length - 1;
+		int i = probe(service, ip, port);
+		while (index[i] != 0) i = (i + 1) & mask;
+		index[i] = slot + 1;
+		size++;
+		return slot;
+	}
+
+	/**
+	 * Removes the instance of a slot, which becomes free.
+	 *
+	 * @param slot the slot
+	 */
+	void delete(int slot) {
+		int mask = index.length - 1;
+		int i = probe(services[slot], ips[slot], ports[slot]);
+		while (index[i] != slot + 1) i = (i + 1) & mask;
+
+		// Shift back following entries that would no longer be reachable
+		int hole = i;
+		for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+			int other = index[j] - 1;
+			int home = probe(services[other], ips[other], ports[other]);
+			if (((j - home) & mask) >= ((j - hole) & mask)) {
+				index[hole] = index[j];
+				hole = j;
+			}
+		}
+		index[hole] = 0;
+
+		links[slot] = free;
+		free = slot;
+		size--;
+	}
+
+	/**
+	 * Grows the instance arrays.
+	 */
+	private void grow() {
+		int capacity = services.length * 2;
+		services = Arrays.copyOf(services, capacity);
+		ips = Arrays.copyOf(ips, capacity);
+		ports = Arrays.copyOf(ports, capacity);
+		agentPorts = Arrays.copyOf(agentPorts, capacity);
+		dots = Arrays.copyOf(dots, capacity);
+		links = Arrays.copyOf(links, capacity);
+	}
+
+	/**
+	 * Rebuilds the index with the given number of buckets.
+	 */
+	private void rehash(int buckets) {
+		int[] old = index;
+		index = new int[buckets];
+		int mask = buckets - 1;
+		for (int entry : old) {
+			if (entry == 0) continue;
+			int slot = entry - 1;
+			int i = probe(services[slot], ips[slot], ports[slot]);
+			while (index[i] != 0) i = (i + 1) & mask;
+			index[i] = entry;
+		}
+	}
+
+	/**
+	 * Removes every instance.
+	 */
+	void clear() {
+		Arrays.fill(index, 0);
+		used = 0;
+		free = NONE;
+		size = 0;
+	}
+
+	/**
+	 * Returns the number of instances.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Field accessors, by slot.
+	 */
+	int service(int slot) {
+		return services[slot];
+	}
+
+	int ip(int slot) {
+		return ips[slot];
+	}
+
+	int port(int slot) {
+		return ports[slot];
+	}
+
+	int agentPort(int slot) {
+		return agentPorts[slot];
+	}
+
+	long dot(int slot) {
+		return dots[slot];
+	}
+
+	void dot(int slot, long dot) {
+		dots[slot] = dot;
+	}
+
+	int position(int slot) {
+		return links[slot];
+	}
+
+	void position(int slot, int position) {
+		links[slot] = position;
+	}
+
+	/**
+	 * Materializes the address of a slot.
+	 */
+	InetSocketAddress address(int slot) {
+		return address(ips[slot], ports[slot]);
+	}
+
+	/**
+	 * Materializes the instance of a slot.
+	 */
+	ServiceInstance instance(int slot) {
+		return new ServiceInstance(services[slot], address(slot), agentPorts[slot]);
+	}
+}
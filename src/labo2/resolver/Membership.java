@@ -0,0 +1,250 @@
+package labo2.resolver;
+
+import labo2.protocol.MembersMessage;
+import labo2.protocol.MembersMessage.Member;
+import labo2.protocol.Message;
+import labo2.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static labo2.protocol.Protocol.RESOLVERS;
+
+/**
+ * Dynamic membership of the resolvers group, maintained by gossip.
+ * <p>
+ * Every resolver knows a list of members, each with a heartbeat counter
+ * that only the member itself increases. Periodically, the resolver increases
+ * its own heartbeat and exchanges its list with a random member or seed
+ * resolver, the most recent heartbeat of every member winning. A member whose
+ * heartbeat did not progress for FAIL_TIMEOUT is no longer considered live,
+ * and is forgotten after CLEANUP_TIMEOUT. A resolver leaving the group
+ * notifies every live member so they do not have to wait for the timeout.
+ * <p>
+ * Heartbeats start from the current time, so a resolver restarting with the
+ * same id always supersedes its previous incarnation.
+ * <p>
+ * All methods are thread-safe.
+ */
+class Membership {
+	/**
+	 * Time between two gossip rounds.
+	 */
+	static final long GOSSIP_INTERVAL = 500;
+
+	/**
+	 * Time without heartbeat progress after which a member is considered dead.
+	 */
+	static final long FAIL_TIMEOUT = 5000;
+
+	/**
+	 * Time without heartbeat progress after which a member is forgotten.
+	 */
+	static final long CLEANUP_TIMEOUT = 30000;
+
+	/**
+	 * A known member and the local time of its last heartbeat progress.
+	 */
+	private static class Known {
+		Member member;
+		long updated;
+
+		Known(Member member, long updated) {
+			this.member = member;
+			this.updated = updated;
+		}
+	}
+
+	private final Logger log;
+	private final byte id;
+	private final EventLoop loop;
+	private final Map<Byte, Known> members = new HashMap<>();
+	private final Random random = new Random();
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+
+	/**
+	 * Constructs a new membership with this resolver as single member.
+	 *
+	 * @param log     the logger to use
+	 * @param id      the id of this resolver
+	 * @param address the address of this resolver
+	 * @param loop    the event loop used to send messages
+	 */
+	Membership(Logger log, byte id, InetSocketAddress address, EventLoop loop) {
+		this.log = log;
+		this.id = id;
+		this.loop = loop;
+		Member self = new Member(id, address, System.currentTimeMillis(), false);
+		members.put(id, new Known(self, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Joins the group by contacting every seed, then starts gossiping.
+	 * The join is sent directly on the channel, since the event loop only
+	 * runs once the resolver is synchronized, and peers must replicate to
+	 * this resolver while it synchronizes.
+	 *
+	 * @throws IOException
+	 */
+	void start() throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(Message.serialize(list(false)));
+		for (InetSocketAddress seed : RESOLVERS) {
+			if (!seed.equals(self().address)) loop.channel().send(data.duplicate(), seed);
+		}
+		scheduler.scheduleWithFixedDelay(this::gossip, GOSSIP_INTERVAL, GOSSIP_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized Member self() {
+		return members.get(id).member;
+	}
+
+	/**
+	 * Increases the heartbeat of this resolver.
+	 */
+	private synchronized void beat(boolean left) {
+		Member self = self();
+		long heartbeat = Math.max(self.heartbeat + 1, System.currentTimeMillis());
+		members.get(id).member = new Member(id, self.address, heartbeat, left);
+	}
+
+	/**
+	 * Runs a gossip round with a random live member or seed.
+	 */
+	private void gossip() {
+		try {
+			beat(false);
+			Set<InetSocketAddress> targets = new LinkedHashSet<>(peers());
+			for (InetSocketAddress seed : RESOLVERS) targets.add(seed);
+			targets.remove(self().address);
+			if (targets.isEmpty()) return;
+			List<InetSocketAddress> candidates = new ArrayList<>(targets);
+			loop.send(list(false), candidates.get(random.nextInt(candidates.size())));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Returns the list of every known member, including this resolver.
+	 *
+	 * @param reply true if the list is a reply to another list
+	 */
+	private synchronized MembersMessage list(boolean reply) {
+		cleanup();
+		List<Member> list = new ArrayList<>(members.size());
+		list.add(self());
+		for (Known known : members.values()) {
+			if (known.member.id != id) list.add(known.member);
+		}
+		return new MembersMessage(reply, list);
+	}
+
+	/**
+	 * Forgets members without heartbeat progress for CLEANUP_TIMEOUT.
+	 */
+	private void cleanup() {
+		long now = System.currentTimeMillis();
+		members.values().removeIf(known -> known.member.id != id && now - known.updated > CLEANUP_TIMEOUT);
+	}
+
+	/**
+	 * Handles a members list received from another resolver.
+	 * Lists that are not replies are answered with the local list, and the
+	 * wire format version advertised by the sender is used from now on.
+	 *
+	 * @param message the members list
+	 * @param sender  the address of the sender
+	 * @throws IOException
+	 */
+	void receive(MembersMessage message, InetSocketAddress sender) throws IOException {
+		loop.negotiate(sender, message.version);
+		merge(message.members);
+		if (!message.reply) loop.send(list(true), sender);
+	}
+
+	/**
+	 * Merges a received list into the local list.
+	 */
+	private synchronized void merge(List<Member> list) {
+		long now = System.currentTimeMillis();
+		for (Member member : list) {
+			if (member.id == id) continue;
+			Known known = members.get(member.id);
+			if (known == null) {
+				if (member.left) continue;
+				log.printf("Resolver %d joined at %s\n", member.id, member.address);
+				members.put(member.id, new Known(member, now));
+			} else if (member.heartbeat > known.member.heartbeat) {
+				if (member.left && !known.member.left) {
+					log.printf("Resolver %d left\n", member.id);
+				} else if (!member.left && (known.member.left || now - known.updated > FAIL_TIMEOUT)) {
+					log.printf("Resolver %d is back at %s\n", member.id, member.address);
+				}
+				known.member = member;
+				known.updated = now;
+			}
+		}
+	}
+
+	/**
+	 * Returns the addresses of every live member, except this resolver.
+	 *
+	 * @return the live peers
+	 */
+	synchronized List<InetSocketAddress> peers() {
+		long now = System.currentTimeMillis();
+		List<InetSocketAddress> peers = new ArrayList<>();
+		for (Known known : members.values()) {
+			if (known.member.id != id && !known.member.left && now - known.updated <= FAIL_TIMEOUT) {
+				peers.add(known.member.address);
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * Returns the list of live members, including this resolver, sorted by id.
+	 * This is the list sent to clients.
+	 *
+	 * @return the members list
+	 */
+	synchronized MembersMessage live() {
+		long now = System.currentTimeMillis();
+		List<Member> live = new ArrayList<>();
+		for (Known known : members.values()) {
+			if (known.member.id == id || (!known.member.left && now - known.updated <= FAIL_TIMEOUT)) {
+				live.add(known.member);
+			}
+		}
+		live.sort((a, b) -> Byte.compare(a.id, b.id));
+		return new MembersMessage(true, live);
+	}
+
+	/**
+	 * Leaves the group, notifying every live member, and stops gossiping.
+	 * Notifications are sent directly on the channel, since the event loop is
+	 * about to be closed.
+	 *
+	 * @throws IOException
+	 */
+	void leave() throws IOException {
+		scheduler.shutdownNow();
+		beat(true);
+		ByteBuffer data = ByteBuffer.wrap(Message.serialize(list(false)));
+		for (InetSocketAddress peer : peers()) {
+			loop.channel().send(data.duplicate(), peer);
+		}
+	}
+}
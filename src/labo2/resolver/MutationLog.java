@@ -0,0 +1,67 @@
+package labo2.resolver;
+
+import labo2.protocol.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded log of directory mutations.
+ * <p>
+ * Mutations are LIST_ADD and LIST_REMOVE messages stamped with consecutive
+ * versions. Only the last capacity mutations are kept, older ones are
+ * overwritten. This class is not thread-safe.
+ */
+class MutationLog {
+	private final Message[] entries;
+
+	/**
+	 * Version of the last mutation appended
+	 */
+	private long last;
+
+	/**
+	 * Version from which the log begins, mutations up to this version are unknown
+	 */
+	private final long start;
+
+	/**
+	 * Constructs a new log.
+	 *
+	 * @param capacity the maximum number of mutations kept
+	 * @param start    the current version, the first mutation appended must follow it
+	 */
+	MutationLog(int capacity, long start) {
+		this.entries = new Message[capacity];
+		this.start = start;
+		this.last = start;
+	}
+
+	/**
+	 * Appends a mutation to the log.
+	 *
+	 * @param version  the version of the mutation, must follow the last one
+	 * @param mutation the mutation
+	 */
+	void append(long version, Message mutation) {
+		if (version != last + 1) throw new IllegalArgumentException();
+		entries[(int) (version % entries.length)] = mutation;
+		last = version;
+	}
+
+	/**
+	 * Returns mutations made after the given version, in order.
+	 *
+	 * @param version the version
+	 * @return the list of mutations, or null if some of them are no longer in the log
+	 */
+	List<Message> since(long version) {
+		long first = Math.max(start + 1, last - entries.length + 1);
+		if (version < first - 1 || version > last) return null;
+		List<Message> mutations = new ArrayList<>((int) (last - version));
+		for (long v = version + 1; v <= last; v++) {
+			mutations.add(entries[(int) (v % entries.length)]);
+		}
+		return mutations;
+	}
+}
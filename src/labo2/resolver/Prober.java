@@ -0,0 +1,212 @@
+package labo2.resolver;
+
+import labo2.protocol.Message;
+import labo2.protocol.MessageType;
+import labo2.protocol.SimpleMessage;
+import labo2.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Health probe coordinator for service agents.
+ * <p>
+ * Every probe is a SERVICE_PING sent to the agent of an instance from a
+ * single shared channel, the instance is considered alive if a SERVICE_PONG
+ * is received before the probe timeout. Probes are single-flight: concurrent
+ * requests to probe the same instance are coalesced into the probe already
+ * in flight and every waiter receives the same verdict.
+ * <p>
+ * Timeouts are not fixed: they are derived for each agent from its RTT
+ * history by an adaptive failure detector. A single timed out ping only makes
+ * the agent suspect, it is pinged again and considered dead after MAX_MISSES
+ * consecutive unanswered pings, or once MAX_TIMEOUT has elapsed without any
+ * answer, whichever comes first.
+ * <p>
+ * Replies are handled by a dedicated event loop and timeouts by a bounded
+ * scheduler, no thread is ever created per probe. Probe state is only ever
+ * accessed from the loop thread and verdicts are delivered on that thread.
+ */
+class Prober {
+	/**
+	 * Number of consecutive unanswered pings after which an agent is dead.
+	 */
+	static final int MAX_MISSES = 3;
+
+	/**
+	 * A probe in flight.
+	 */
+	private static class Probe {
+		final ServiceInstance instance;
+		final InetSocketAddress agent;
+		final List<Consumer<Boolean>> waiters = new ArrayList<>();
+		final long started = System.currentTimeMillis();
+		ScheduledFuture<?> timeout;
+		int misses = 0;
+
+		Probe(ServiceInstance instance) {
+			this.instance = instance;
+			this.agent = new InetSocketAddress(instance.address.getAddress(), instance.agentPort);
+		}
+	}
+
+	private final Logger log;
+	private final EventLoop loop;
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+	private final FailureDetector detector = new FailureDetector();
+	private final byte[] ping;
+
+	/**
+	 * Probes in flight, indexed by instance
+	 */
+	private final Map<ServiceInstance, Probe> probes = new HashMap<>();
+
+	/**
+	 * Probes in flight, indexed by agent address
+	 */
+	private final Map<InetSocketAddress, Probe> agents = new HashMap<>();
+
+	/**
+	 * Constructs and starts a new prober.
+	 *
+	 * @param log the logger to use
+	 * @throws IOException
+	 */
+	Prober(Logger log) throws IOException {
+		this.log = log;
+		this.ping = Message.serialize(SimpleMessage.ofType(MessageType.SERVICE_PING));
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(null);
+		this.loop = new EventLoop(channel);
+		new Thread(() -> {
+			try {
+				loop.run(this::receive);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}).start();
+	}
+
+	/**
+	 * Probes the given instance, or joins the probe already in flight for it.
+	 * This method is thread-safe.
+	 *
+	 * @param instance the instance to probe
+	 * @param waiter   receives true if the instance is alive, false otherwise
+	 */
+	void probe(ServiceInstance instance, Consumer<Boolean> waiter) {
+		loop.execute(() -> {
+			Probe probe = probes.get(instance);
+			if (probe == null) {
+				probe = new Probe(instance);
+				probes.put(instance, probe);
+				agents.put(probe.agent, probe);
+				ping(probe);
+			} else {
+				log.printf("Joining probe in flight for %s\n", instance.address);
+			}
+			probe.waiters.add(waiter);
+		});
+	}
+
+	/**
+	 * Sends a ping for the given probe and schedules its timeout.
+	 */
+	private void ping(Probe probe) {
+		loop.send(ping, probe.agent);
+		detector.sent(probe.agent, System.currentTimeMillis());
+		probe.timeout = scheduler.schedule(() -> loop.execute(() -> expire(probe)),
+			detector.timeout(probe.agent), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Handles the timeout of the last ping of a probe: pings the agent again,
+	 * or completes the probe once the agent missed too many pings.
+	 * Does nothing if the probe was already completed.
+	 */
+	private void expire(Probe probe) {
+		if (probes.get(probe.instance) != probe) return;
+		detector.lost(probe.agent);
+		probe.misses++;
+		long elapsed = System.currentTimeMillis() - probe.started;
+		if (probe.misses < MAX_MISSES && elapsed < FailureDetector.MAX_TIMEOUT) {
+			log.printf("Agent %s missed %d ping(s)\n", probe.agent, probe.misses);
+			ping(probe);
+		} else {
+			complete(probe, false);
+		}
+	}
+
+	/**
+	 * Handles a message received on the probe channel.
+	 */
+	private void receive(Message message, InetSocketAddress sender) {
+		if (message.type() != MessageType.SERVICE_PONG) {
+			log.printf("Received unexpected message from agent: %s\n", message);
+			return;
+		}
+		Probe probe = agents.get(sender);
+		if (probe != null) {
+			probe.timeout.cancel(false);
+			detector.received(probe.agent, System.currentTimeMillis());
+			complete(probe, true);
+		}
+	}
+
+	/**
+	 * Completes a probe and notifies every waiter.
+	 * Does nothing if the probe was already completed.
+	 */
+	private void complete(Probe probe, boolean alive) {
+		if (probes.get(probe.instance) != probe) return;
+		probes.remove(probe.instance);
+		agents.remove(probe.agent);
+		for (Consumer<Boolean> waiter : probe.waiters) {
+			waiter.accept(alive);
+		}
+	}
+
+	/**
+	 * Returns the current suspicion level of an instance.
+	 * This method is thread-safe.
+	 *
+	 * @param instance the instance
+	 * @return the phi value, 0 if no probe is pending
+	 */
+	double suspicion(ServiceInstance instance) {
+		InetSocketAddress agent = new InetSocketAddress(instance.address.getAddress(), instance.agentPort);
+		return detector.phi(agent, System.currentTimeMillis());
+	}
+
+	/**
+	 * Forgets the probe history of an evicted instance.
+	 * This method is thread-safe.
+	 *
+	 * @param instance the instance
+	 */
+	void forget(ServiceInstance instance) {
+		detector.forget(new InetSocketAddress(instance.address.getAddress(), instance.agentPort));
+	}
+
+	/**
+	 * Stops the prober.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		// The loop runs its last tasks while closing, they may schedule timeouts
+		loop.close();
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,340 @@
+package labo2.resolver;
+
+import labo2.protocol.ListAckMessage;
+import labo2.protocol.ListBatchMessage;
+import labo2.protocol.Message;
+import labo2.utils.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replication streams between resolvers.
+ * <p>
+ * Directory mutations are not sent to peers as they happen. They are queued
+ * in a per-peer outbox and flushed as LIST_BATCH datagrams, either on a short
+ * tick or as soon as a full batch is pending. Queueing a mutation is cheap,
+ * which keeps replication off the critical path of request handling.
+ * <p>
+ * In reliable mode, the batches sent to a peer form a numbered stream. The
+ * peer applies batches strictly in order and replies with cumulative
+ * LIST_ACK messages. At most WINDOW batches are in flight, unacknowledged
+ * batches are retransmitted after a timeout, doubled on every retransmission,
+ * or as soon as duplicate acknowledgements reveal a gap on the receiver side.
+ * A peer that does not acknowledge anything for PEER_TIMEOUT is considered
+ * gone, its stream is dropped and a new session starts. A peer that restarts
+ * joins the stream of each sender at the oldest batch still retransmittable,
+ * older mutations being covered by its initial synchronization.
+ * <p>
+ * Mutations are sent to the live members of the group, as seen by the
+ * membership when they are queued. The state of a peer is created on first
+ * use and dropped on the next tick after it leaves or fails.
+ * <p>
+ * The mode is read from the labo2.replication.reliable system property,
+ * reliable by default. In best-effort mode, batches are sent once and never
+ * acknowledged.
+ * <p>
+ * All methods are thread-safe.
+ */
+class Replicator {
+	/**
+	 * Time between two flushes of the outbox.
+	 */
+	static final long FLUSH_INTERVAL = 5;
+
+	/**
+	 * Maximum number of unacknowledged batches per peer.
+	 */
+	static final int WINDOW = 64;
+
+	/**
+	 * Bounds of the retransmission timeout, in milliseconds.
+	 */
+	static final long MIN_RETRANSMIT_TIMEOUT = 50;
+	static final long MAX_RETRANSMIT_TIMEOUT = 1600;
+
+	/**
+	 * Time without any acknowledgement after which a stream is dropped.
+	 */
+	static final long PEER_TIMEOUT = 5000;
+
+	/**
+	 * Number of duplicate acknowledgements triggering a retransmission.
+	 */
+	private static final int DUPLICATE_ACKS = 2;
+
+	/**
+	 * A batch waiting for acknowledgement.
+	 */
+	private static class Outgoing {
+		final int seq;
+		final byte[] data;
+		long sentAt;
+
+		Outgoing(int seq, byte[] data, long sentAt) {
+			this.seq = seq;
+			this.data = data;
+			this.sentAt = sentAt;
+		}
+	}
+
+	/**
+	 * Replication state with a peer, in both directions.
+	 */
+	private static class Peer {
+		final InetSocketAddress address;
+
+		/**
+		 * Outgoing stream: pending mutations and batches in flight
+		 */
+		List<Message> pending = new ArrayList<>();
+		final Deque<Outgoing> unacked = new ArrayDeque<>();
+		long session;
+		int nextSeq = 0;
+		long timeout = MIN_RETRANSMIT_TIMEOUT;
+		long lastProgress;
+		int duplicates = 0;
+
+		/**
+		 * Incoming stream: session, next expected batch and batches received
+		 * out of order
+		 */
+		long inSession = 0;
+		int expected = 0;
+		final Map<Integer, ListBatchMessage> early = new HashMap<>();
+
+		Peer(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	private final Logger log;
+	private final EventLoop loop;
+	private final boolean reliable;
+	private final Membership membership;
+	private final Map<InetSocketAddress, Peer> peers = new HashMap<>();
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+
+	/**
+	 * Constructs and starts a new replicator.
+	 *
+	 * @param log        the logger to use
+	 * @param loop       the event loop used to send batches
+	 * @param membership the membership giving the live peers
+	 */
+	Replicator(Logger log, EventLoop loop, Membership membership) {
+		this.log = log;
+		this.loop = loop;
+		this.membership = membership;
+		this.reliable = Boolean.parseBoolean(System.getProperty("labo2.replication.reliable", "true"));
+		scheduler.scheduleWithFixedDelay(this::tick, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Generates a new random nonzero session identifier.
+	 */
+	private static long newSession() {
+		long session;
+		do {
+			session = new Random().nextLong();
+		} while (session == 0);
+		return session;
+	}
+
+	/**
+	 * Returns the state of a peer, created on first use.
+	 */
+	private Peer peer(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		if (peer == null) {
+			peer = new Peer(address);
+			peer.session = reliable ? newSession() : 0;
+			peers.put(address, peer);
+		}
+		return peer;
+	}
+
+	/**
+	 * Queues a LIST_ADD or LIST_REMOVE mutation for replication to every live
+	 * peer.
+	 *
+	 * @param mutation the mutation
+	 * @throws IOException
+	 */
+	synchronized void replicate(Message mutation) throws IOException {
+		for (InetSocketAddress address : membership.peers()) {
+			Peer peer = peer(address);
+			peer.pending.add(mutation);
+			if (peer.pending.size() >= ListBatchMessage.MAX_ENTRIES) flush(peer);
+		}
+	}
+
+	/**
+	 * Handles a batch received from a peer.
+	 * Returns mutations that can be applied, in order. In reliable mode, these
+	 * are the entries of every batch newly received in sequence, and the
+	 * batch is acknowledged.
+	 *
+	 * @param batch  the received batch
+	 * @param sender the address of the peer
+	 * @return the mutations to apply
+	 * @throws IOException
+	 */
+	synchronized List<Message> receive(ListBatchMessage batch, InetSocketAddress sender) throws IOException {
+		if (batch.session == 0) return batch.entries;
+		Peer peer = peer(sender);
+
+		if (batch.session != peer.inSession) {
+			// New stream, either the peer or ourselves restarted
+			peer.inSession = batch.session;
+			peer.expected = batch.first;
+			peer.early.clear();
+		} else if (batch.first > peer.expected) {
+			// Older batches were acknowledged by a previous run of this resolver
+			int first = batch.first;
+			peer.expected = first;
+			peer.early.keySet().removeIf(seq -> seq < first);
+		}
+
+		List<Message> entries = Collections.emptyList();
+		if (batch.seq == peer.expected) {
+			entries = new ArrayList<>(batch.entries);
+			peer.expected++;
+			ListBatchMessage next;
+			while ((next = peer.early.remove(peer.expected)) != null) {
+				entries.addAll(next.entries);
+				peer.expected++;
+			}
+		} else if (batch.seq > peer.expected && batch.seq - peer.expected < WINDOW) {
+			log.printf("Gap in replication stream from %s, expected %d, got %d\n", sender, peer.expected, batch.seq);
+			peer.early.put(batch.seq, batch);
+		}
+
+		loop.send(new ListAckMessage(peer.inSession, peer.expected), sender);
+		return entries;
+	}
+
+	/**
+	 * Handles an acknowledgement received from a peer.
+	 *
+	 * @param ack    the acknowledgement
+	 * @param sender the address of the peer
+	 * @throws IOException
+	 */
+	synchronized void acknowledge(ListAckMessage ack, InetSocketAddress sender) throws IOException {
+		Peer peer = peers.get(sender);
+		if (peer == null || ack.session != peer.session) return;
+
+		boolean progress = false;
+		while (!peer.unacked.isEmpty() && peer.unacked.peekFirst().seq < ack.next) {
+			peer.unacked.removeFirst();
+			progress = true;
+		}
+
+		long now = System.currentTimeMillis();
+		if (progress) {
+			peer.lastProgress = now;
+			peer.timeout = MIN_RETRANSMIT_TIMEOUT;
+			peer.duplicates = 0;
+			flush(peer);
+		} else if (!peer.unacked.isEmpty() && ++peer.duplicates >= DUPLICATE_ACKS) {
+			// The receiver is missing the first batch in flight
+			Outgoing missing = peer.unacked.peekFirst();
+			loop.send(missing.data, peer.address);
+			missing.sentAt = now;
+			peer.duplicates = 0;
+		}
+	}
+
+	/**
+	 * Sends pending mutations of a peer, as long as the window allows it.
+	 */
+	private void flush(Peer peer) throws IOException {
+		long now = System.currentTimeMillis();
+		while (!peer.pending.isEmpty() && (!reliable || peer.unacked.size() < WINDOW)) {
+			List<Message> slice = peer.pending.subList(0, Math.min(peer.pending.size(), ListBatchMessage.MAX_ENTRIES));
+			int first = peer.unacked.isEmpty() ? peer.nextSeq : peer.unacked.peekFirst().seq;
+			ListBatchMessage batch = new ListBatchMessage(peer.session, peer.nextSeq, first, new ArrayList<>(slice));
+			byte[] data = Message.serialize(batch, loop.version(peer.address));
+			slice.clear();
+
+			loop.send(data, peer.address);
+			if (reliable) {
+				if (peer.unacked.isEmpty()) peer.lastProgress = now;
+				peer.unacked.addLast(new Outgoing(peer.nextSeq++, data, now));
+			}
+		}
+	}
+
+	/**
+	 * Follows the live view of the membership, retransmits timed out batches
+	 * and flushes pending mutations.
+	 */
+	private synchronized void tick() {
+		try {
+			Set<InetSocketAddress> members = new HashSet<>(membership.peers());
+			peers.values().removeIf(peer -> {
+				if (members.contains(peer.address)) return false;
+				if (!peer.unacked.isEmpty() || !peer.pending.isEmpty()) {
+					log.printf("Resolver %s is gone, dropping %d batch(es) and %d pending mutation(s)\n",
+						peer.address, peer.unacked.size(), peer.pending.size());
+				}
+				return true;
+			});
+
+			long now = System.currentTimeMillis();
+			for (Peer peer : peers.values()) {
+				if (!peer.unacked.isEmpty()) {
+					if (now - peer.lastProgress >= PEER_TIMEOUT) {
+						log.printf("Replication to %s stalled, dropping %d batch(es) and %d pending mutation(s)\n",
+							peer.address, peer.unacked.size(), peer.pending.size());
+						peer.unacked.clear();
+						peer.pending.clear();
+						peer.session = newSession();
+						peer.nextSeq = 0;
+						peer.timeout = MIN_RETRANSMIT_TIMEOUT;
+						continue;
+					}
+					boolean retransmitted = false;
+					for (Outgoing outgoing : peer.unacked) {
+						if (now - outgoing.sentAt >= peer.timeout) {
+							loop.send(outgoing.data, peer.address);
+							outgoing.sentAt = now;
+							retransmitted = true;
+						}
+					}
+					if (retransmitted) peer.timeout = Math.min(MAX_RETRANSMIT_TIMEOUT, peer.timeout * 2);
+				}
+				flush(peer);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Stops the replicator, pending mutations are flushed one last time.
+	 *
+	 * @throws IOException
+	 */
+	synchronized void close() throws IOException {
+		scheduler.shutdownNow();
+		for (Peer peer : peers.values()) {
+			flush(peer);
+		}
+	}
+}
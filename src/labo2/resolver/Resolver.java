@@ -7,28 +7,59 @@ import labo2.utils.Task;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.channels.DatagramChannel;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static labo2.protocol.MessageType.*;
 import static labo2.protocol.Protocol.RESOLVERS;
 
+/**
+ * A resolver node.
+ * <p>
+ * A resolver serves its port from one or more workers. Each worker owns its
+ * own non-blocking event loop and its own channel bound to the resolver port.
+ * When more than one worker is used, channels are bound with SO_REUSEPORT and
+ * the kernel spreads incoming datagrams between them, hashing on the sender
+ * address. Datagrams from a given peer are thus always handled by the same
+ * worker and in order, which keeps LIST_BATCH replication correct.
+ * The services directory is shared by every worker.
+ * <p>
+ * Resolvers of Protocol.RESOLVERS are seeds, contacted by every resolver
+ * joining the group. Other resolvers may join at runtime with a higher index
+ * and are then bound to the port following the seeds ports.
+ */
 public class Resolver extends Task<Void> {
+	/**
+	 * Index of this resolver
+	 */
+	private int id;
+
+	/**
+	 * Number of workers serving the resolver port
+	 */
+	private int workersCount;
+
+	/**
+	 * Workers of this resolver
+	 */
+	private Worker[] workers;
+
 	/**
 	 * Current state of the resolver
 	 */
-	private State state = State.SYNC;
+	private volatile State state = State.SYNC;
 
 	/**
-	 * Index of this resolver
+	 * Health probe coordinator, shared by every worker
 	 */
-	private int id;
+	private Prober prober;
 
 	/**
-	 * The UDP datagram socket use by this resolver
+	 * Proactive liveness checks of instances
 	 */
-	private DatagramSocket socket;
+	private Heartbeat heartbeat;
 
 	/**
 	 * Logger instance
@@ -36,302 +67,447 @@ public class Resolver extends Task<Void> {
 	private Logger log;
 
 	/**
-	 * Lists of services instances
+	 * The services directory
 	 */
-	@SuppressWarnings("unchecked")
-	private LinkedList<ServiceInstance>[] services = (LinkedList<ServiceInstance>[]) new LinkedList[Protocol.SERVICES_COUNT];
+	private final Directory directory;
+
+	/**
+	 * Index, epoch and version of the directory of the resolver this resolver
+	 * last synchronized with, used to only request changes on the next
+	 * synchronization
+	 */
+	private int syncPeer = -1;
+	private long syncEpoch = 0;
+	private long syncVersion = -1;
+
+	/**
+	 * Live members of the resolvers group
+	 */
+	private Membership membership;
+
+	/**
+	 * Replication outbox towards other resolvers
+	 */
+	private Replicator replicator;
+
+	/**
+	 * Background repair of divergences with other resolvers
+	 */
+	private AntiEntropy antiEntropy;
+
+	/**
+	 * Persistent store of the directory, null if persistence is disabled
+	 */
+	private Store store;
+
+	/**
+	 * Synchronization transfers in progress, indexed by requester
+	 */
+	private final Map<InetSocketAddress, SyncTransfer> transfers = new ConcurrentHashMap<>();
 
 	/**
 	 * Constructs a new Resolver instance.
 	 *
-	 * @param id the pre-defined configuration index of this resolver
+	 * @param id           the pre-defined configuration index of this resolver
+	 * @param workersCount the number of workers serving the resolver port
 	 */
-	private Resolver(int id) {
+	private Resolver(int id, int workersCount) {
+		if (workersCount < 1) throw new IllegalArgumentException();
 		this.id = id;
+		this.workersCount = workersCount;
+		this.directory = new Directory((byte) id);
 		this.log = Logger.getLogger("resolver:" + id);
-
-		for (int i = 0; i < services.length; i++) {
-			services[i] = new LinkedList<>();
-		}
 	}
 
 	/**
 	 * Main process loop.
+	 * The first worker runs on the task thread, other workers are given their own.
 	 *
 	 * @throws IOException
 	 */
 	protected void run() throws IOException {
-		// Open resolver socket
-		socket = new DatagramSocket(RESOLVERS[id]);
-		log.printf("Listening on %s:%d\n", socket.getLocalAddress(), socket.getLocalPort());
+		// Open workers channels, every channel must be bound before sync
+		// begins to ensure that no datagram is lost
+		workers = new Worker[workersCount];
+		for (int i = 0; i < workersCount; i++) {
+			DatagramChannel channel = DatagramChannel.open();
+			if (workersCount > 1) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			channel.bind(address(id));
+			workers[i] = new Worker(new EventLoop(channel));
+		}
+		log.printf("Listening on %s with %d worker(s)\n", workers[0].loop.channel().getLocalAddress(), workersCount);
+
+		// Load the persisted directory before joining peers
+		store = Store.open(log, id);
+		if (store != null) {
+			store.load(directory);
+			syncPeer = store.syncPeer();
+			syncEpoch = store.syncEpoch();
+			syncVersion = store.syncVersion();
+		}
 
-		// Initialize instances list from another resolver
-		init();
+		membership = new Membership(log, (byte) id, address(id), workers[0].loop);
+		replicator = new Replicator(log, workers[0].loop, membership);
+		prober = new Prober(log);
+		heartbeat = new Heartbeat(log, directory, prober, this::evict);
+		antiEntropy = new AntiEntropy(log, workers[0].loop, membership, directory, replicator);
 
-		// Main loop
-		byte[] buffer = new byte[512];
-		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-		try {
-			while (true) {
-				socket.receive(packet);
-				receive(packet);
-				packet.setData(buffer);
-			}
-		} catch (SocketException closed) {
-			if (!socket.isClosed()) throw closed;
+		// Join the group, so that peers replicate to us while we synchronize,
+		// then initialize instances list from another resolver
+		membership.start();
+		init();
+		heartbeat.start();
+		antiEntropy.start();
+
+		// Only now can the resolver be stopped safely
+		state = State.READY;
+		ready();
+
+		// Main loops
+		for (int i = 1; i < workersCount; i++) {
+			Worker worker = workers[i];
+			new Thread(() -> {
+				try {
+					worker.loop.run(worker::receive, worker::request);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+			}).start();
 		}
+		workers[0].loop.run(workers[0]::receive, workers[0]::request);
+	}
+
+	/**
+	 * Returns the address of a resolver: seeds use their configured address,
+	 * other resolvers the port following the seeds ports.
+	 *
+	 * @param id the resolver index
+	 * @return the resolver address
+	 */
+	private static InetSocketAddress address(int id) {
+		if (id < RESOLVERS.length) return RESOLVERS[id];
+		InetSocketAddress last = RESOLVERS[RESOLVERS.length - 1];
+		return new InetSocketAddress(last.getAddress(), last.getPort() + id - RESOLVERS.length + 1);
 	}
 
 	/**
 	 * Initializes this resolver by loading the services list from another resolver.
+	 * If this resolver already synchronized in the past, only changes since the
+	 * last known version are requested.
 	 */
 	private void init() throws IOException {
 		try (ResolverClient client = ResolverClient.withNewSocket().withLogger(log)) {
-			List<ListAddMessage> instances = client.sync();
-			log.printf("Received %d services\n", instances.size());
-			for (ListAddMessage add : instances) {
-				registerService(new ServiceInstance(add.service, add.address, add.agentPort));
+			// Prefer the resolver whose history we already know
+			if (syncPeer >= 0) client.setResolverIndex(syncPeer);
+			ListSyncResult result = client.sync(syncEpoch, syncVersion);
+			log.printf("Received %d %s\n", result.entries.size(), result.delta ? "changes" : "services");
+			if (result.delta) {
+				for (Message entry : result.entries) {
+					directory.apply(entry);
+				}
+			} else {
+				directory.merge(result.entries, result.clock, -1L);
 			}
+			syncPeer = client.getResolverIndex();
+			syncEpoch = result.epoch;
+			syncVersion = result.version;
+			if (store != null) store.synced(syncPeer, syncEpoch, syncVersion);
 		} catch (ResolverClientException ignored) {
-			log.println("No resolver available, starting with an empty directory...");
+			log.printf("No resolver available, starting with %d local instances...\n", directory.size());
 			// Ignore ResolverClientException, just start with an empty list
-		} finally {
-			// Send SELF_READY message
-			byte[] data = Message.serialize(SimpleMessage.ofType(SELF_READY));
-			DatagramPacket packet = new DatagramPacket(data, data.length, socket.getLocalAddress(), socket.getLocalPort());
-			socket.send(packet);
 		}
 	}
 
 	/**
 	 * Stops this resolver.
 	 */
-	protected void interrupt() {
-		socket.close();
+	protected void interrupt() throws IOException {
+		// Stop producing messages and queue the last replication batches,
+		// the worker loops then flush them before closing their channel
+		membership.leave();
+		heartbeat.close();
+		antiEntropy.close();
+		prober.close();
+		replicator.close();
+		for (Worker worker : workers) {
+			worker.loop.close();
+		}
+		if (store != null) store.close();
 		log.println("Resolver stopped...");
 	}
 
 	/**
-	 * Adds a new service to the local directory.
+	 * Returns the number of instances in the directory of this resolver.
 	 *
-	 * @param instance the service instance
+	 * @return the number of instances
 	 */
-	private void registerService(ServiceInstance instance) {
-		for (ServiceInstance i : services[instance.service]) {
-			if (i.equals(instance)) return;
-		}
-		services[instance.service].add(instance);
+	public int size() {
+		return directory.size();
 	}
 
 	/**
-	 * Requests a service instance from the local directory.
+	 * Returns the current suspicion level of a service instance, as computed by
+	 * the failure detector. This is 0 while no probe is pending, and grows while
+	 * waiting for the agent to answer. The instance is considered dead once
+	 * the level reaches FailureDetector.THRESHOLD.
 	 *
 	 * @param service the service id
-	 * @return the address of one instance of the service, if any is available; else null
+	 * @param address the instance address
+	 * @return the suspicion level, or NaN if the instance is unknown
 	 */
-	private ServiceInstance requestService(int service) {
-		LinkedList<ServiceInstance> list = services[service];
-		ServiceInstance instance = list.poll();
-		if (instance != null) list.add(instance);
-		return instance;
+	public double suspicion(int service, InetSocketAddress address) {
+		ServiceInstance instance = directory.find(service, address);
+		return (instance != null) ? prober.suspicion(instance) : Double.NaN;
 	}
 
-	private int serviceAgentPort(byte service, InetSocketAddress address) {
-		for (ServiceInstance i : services[service]) {
-			if (i.address.equals(address)) {
-				return i.agentPort;
+	/**
+	 * Evicts a dead instance from the directory and replicates the removal.
+	 * Does nothing if the instance was already removed.
+	 * This method is thread-safe.
+	 *
+	 * @param instance the instance to evict
+	 */
+	private void evict(ServiceInstance instance) {
+		try {
+			prober.forget(instance);
+			for (Message removal : directory.remove(instance.service, instance.address)) {
+				replicator.replicate(removal);
 			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
 		}
-		return -1;
 	}
 
-	private void removeService(byte service, InetSocketAddress address) {
-		Iterator<ServiceInstance> it = services[service].listIterator();
-		while (it.hasNext()) {
-			ServiceInstance instance = it.next();
-			if (instance.address.equals(address)) {
-				it.remove();
-				return;
-			}
+	/**
+	 * A worker serving the resolver port.
+	 */
+	private class Worker {
+		/**
+		 * The non-blocking engine of this worker
+		 */
+		final EventLoop loop;
+
+		Worker(EventLoop loop) {
+			this.loop = loop;
 		}
-	}
 
-	private synchronized void receive(DatagramPacket packet) throws IOException {
-		Message message = Message.parse(packet.getData(), packet.getOffset(), packet.getLength());
-		MessageType type = message.type();
-
-		if (state != State.READY && type != SELF_READY && type != LIST_ADD && type != LIST_REMOVE) {
-			return;
+		/**
+		 * Handles a version 1 service request received by the event loop,
+		 * without decoding it into a message.
+		 * This method is only ever called from the loop thread.
+		 *
+		 * @param request the received request
+		 * @param sender  the address of the sender
+		 * @return the encoded offer, or null if the resolver is not ready
+		 */
+		private byte[] request(ServiceRequestView request, InetSocketAddress sender) {
+			if (state != State.READY) return null;
+			int service = request.service();
+			// Boxing the arguments would allocate on every request
+			if (Logger.isEnabled()) log.printf("Received request for service [%d] from %s\n", service, sender);
+			// Offers are encoded once per instance by the directory
+			return directory.offer(service);
 		}
 
-		switch (type) {
-			case SELF_READY: {
-				// Set the resolver as ready
-				state = State.READY;
-				ready();
-				break;
-			}
-
-			case SERVICE_REGISTER: {
-				ServiceRegisterMessage msg = (ServiceRegisterMessage) message;
-				log.printf("Received service offer for [%d] from %s:%d (agent:%d)\n",
-					msg.service, packet.getAddress(), packet.getPort(), msg.agentPort);
-
-				InetSocketAddress address = new InetSocketAddress(packet.getAddress(), packet.getPort());
-				ServiceInstance instance = new ServiceInstance(msg.service, address, msg.agentPort);
-				registerService(instance);
-
-				broadcast(new ListAddMessage(instance.service, instance.address, instance.agentPort));
-				send(SimpleMessage.ofType(MessageType.SERVICE_REGISTERED), packet);
-				break;
+		/**
+		 * Handles a message received by the event loop.
+		 * This method is only ever called from the loop thread.
+		 *
+		 * @param message the received message
+		 * @param sender  the address of the sender
+		 * @throws IOException
+		 */
+		private void receive(Message message, InetSocketAddress sender) throws IOException {
+			MessageType type = message.type();
+
+			// Mutations commute, replication and membership are handled even
+			// during synchronization
+			if (state != State.READY && type != LIST_ADD && type != LIST_REMOVE
+				&& type != LIST_BATCH && type != LIST_ACK && type != MEMBERS) {
+				return;
 			}
 
-			case SERVICE_REQUEST: {
-				ServiceRequestMessage msg = (ServiceRequestMessage) message;
-				log.printf("Received request for service [%d] from %s\n", msg.service, packet.getSocketAddress());
+			switch (type) {
+				case SERVICE_REGISTER: {
+					ServiceRegisterMessage msg = (ServiceRegisterMessage) message;
+					log.printf("Received service offer for [%d] from %s (agent:%d)\n",
+						msg.service, sender, msg.agentPort);
 
-				ServiceInstance instance = requestService(msg.service);
-				send(new ServiceOfferMessage(
-					instance != null,
-					instance != null ? instance.address : null
-				), packet);
-				break;
-			}
+					ServiceInstance instance = new ServiceInstance(msg.service, sender, msg.agentPort);
+					ListAddMessage mutation = directory.register(instance);
 
-			case SERVICE_OFFLINE: {
-				ServiceOfflineMessage msg = (ServiceOfflineMessage) message;
-				log.printf("Received service offline notification for service [%d] from %s\n",
-					msg.service, packet.getSocketAddress());
+					send(SimpleMessage.ofType(MessageType.SERVICE_REGISTERED), sender);
+					if (mutation != null) replicator.replicate(mutation);
+					break;
+				}
 
-				int agentPort = serviceAgentPort(msg.service, msg.address);
-				if (agentPort < 0) {
-					log.println("Unknown service");
-					send(new ServiceThanksMessage(false), packet);
+				case SERVICE_REQUEST: {
+					ServiceRequestMessage msg = (ServiceRequestMessage) message;
+					log.printf("Received request for service [%d] from %s\n", msg.service, sender);
+
+					if (loop.correlated()) {
+						// Correlated requests need the id in the reply
+						InetSocketAddress address = directory.request(msg.service);
+						send(new ServiceOfferMessage(address != null, address), sender);
+					} else {
+						// Offers are encoded once per instance by the directory
+						loop.send(directory.offer(msg.service), sender);
+					}
 					break;
 				}
 
-				InetAddress clientAddress = packet.getAddress();
-				int clientPort = packet.getPort();
+				case SERVICE_OFFLINE: {
+					ServiceOfflineMessage msg = (ServiceOfflineMessage) message;
+					log.printf("Received service offline notification for service [%d] from %s\n",
+						msg.service, sender);
 
-				new Thread(() -> {
-					try {
-						DatagramSocket socket = new DatagramSocket(null);
-						socket.setSoTimeout(1000);
+					ServiceInstance instance = directory.find(msg.service, msg.address);
+					if (instance == null) {
+						log.println("Unknown service");
+						send(new ServiceThanksMessage(false), sender);
+						break;
+					}
+
+					EventLoop.Reply reply = loop.reply();
+					prober.probe(instance, alive -> {
 						try {
-							// Send ping
-							byte[] data = Message.serialize(SimpleMessage.ofType(SERVICE_PING));
-							DatagramPacket p = new DatagramPacket(data, data.length, msg.address.getAddress(), agentPort);
-							socket.send(p);
-
-							// Receive PONG
-							byte[] buffer = new byte[512];
-							p.setData(buffer);
-							socket.receive(p);
-							if (Message.parse(p.getData(), p.getOffset(), p.getLength()).type() == SERVICE_PONG) {
+							if (alive) {
 								log.println("Got service answer in time");
-								send(new ServiceThanksMessage(true), clientAddress, clientPort);
+								loop.send(new ServiceThanksMessage(true), reply);
 								return;
 							}
-						} catch (SocketTimeoutException ignored) {}
-						log.println("Service failed to respond in time");
-						removeService(msg.service, msg.address);
-						broadcast(new ListRemoveMessage(msg.service, msg.address));
-						send(new ServiceThanksMessage(false), clientAddress, clientPort);
-						socket.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-						System.exit(1);
+							log.println("Service failed to respond in time");
+							// Concurrent reports share the same verdict, only the first
+							// one actually removes the instance and replicates it
+							evict(instance);
+							loop.send(new ServiceThanksMessage(false), reply);
+						} catch (IOException e) {
+							e.printStackTrace();
+							System.exit(1);
+						}
+					});
+					break;
+				}
+
+				case LIST_SYNC_REQUEST: {
+					ListSyncRequestMessage msg = (ListSyncRequestMessage) message;
+					log.printf("Received sync request from %s\n", sender);
+					long now = System.currentTimeMillis();
+					transfers.values().removeIf(t -> t.expired(now));
+
+					SyncTransfer transfer = new SyncTransfer(directory.changes(msg.epoch, msg.since),
+						loop.version(sender));
+					transfers.put(sender, transfer);
+					if (transfer.envelope != null) {
+						loop.send(transfer.envelope, sender);
+						break;
 					}
-				}).start();
-				break;
-			}
+					for (byte[] chunk : transfer.chunks) {
+						loop.send(chunk, sender);
+					}
+					loop.send(transfer.commit, sender);
+					break;
+				}
 
-			case LIST_SYNC_REQUEST: {
-				log.printf("Received sync request from %s\n", packet.getSocketAddress());
-				for (LinkedList<ServiceInstance> serviceInstances : services) {
-					for (ServiceInstance instance : serviceInstances) {
-						send(new ListAddMessage(instance.service, instance.address, instance.agentPort), packet);
+				case LIST_SYNC_RETRANSMIT: {
+					ListSyncRetransmitMessage msg = (ListSyncRetransmitMessage) message;
+					SyncTransfer transfer = transfers.get(sender);
+					if (transfer == null) {
+						log.printf("Received retransmit request for unknown transfer from %s\n", sender);
+						break;
 					}
+					log.printf("Retransmitting %d chunk(s) to %s\n", msg.seqs.size(), sender);
+					transfer.lastActivity = System.currentTimeMillis();
+					for (int seq : msg.seqs) {
+						if (seq >= 0 && seq < transfer.chunks.size()) loop.send(transfer.chunks.get(seq), sender);
+					}
+					loop.send(transfer.commit, sender);
+					break;
 				}
-				send(SimpleMessage.ofType(MessageType.LIST_SYNC_COMMIT), packet);
-				break;
-			}
 
-			case LIST_ADD: {
-				ListAddMessage msg = (ListAddMessage) message;
-				log.printf("Received list add notification from %s\n", packet.getSocketAddress());
-				registerService(new ServiceInstance(msg.service, msg.address, msg.agentPort));
-				break;
-			}
+				case LIST_ADD: {
+					log.printf("Received list add notification from %s\n", sender);
+					directory.apply(message);
+					break;
+				}
 
-			case LIST_REMOVE: {
-				ListRemoveMessage msg = (ListRemoveMessage) message;
-				log.printf("Received list remove notification from %s\n", packet.getSocketAddress());
-				removeService(msg.service, msg.address);
-				break;
-			}
+				case LIST_REMOVE: {
+					log.printf("Received list remove notification from %s\n", sender);
+					directory.apply(message);
+					break;
+				}
 
-			default:
-				log.printf("Received unknown message: %s\n", message);
-		}
-	}
+				case LIST_BATCH: {
+					ListBatchMessage msg = (ListBatchMessage) message;
+					log.printf("Received %d list notification(s) from %s\n", msg.entries.size(), sender);
+					for (Message entry : replicator.receive(msg, sender)) {
+						directory.apply(entry);
+					}
+					break;
+				}
 
-	/**
-	 * Sends a message to every other resolvers.
-	 *
-	 * @param message the message to send
-	 * @throws IOException
-	 */
-	private void broadcast(Message message) throws IOException {
-		for (int i = 0; i < RESOLVERS.length; i++) {
-			if (i != id) {
-				send(message, RESOLVERS[i]);
-			}
-		}
-	}
+				case LIST_ACK: {
+					replicator.acknowledge((ListAckMessage) message, sender);
+					break;
+				}
 
-	/**
-	 * Sends a message to the given address.
-	 *
-	 * @param message the message to send
-	 * @param address the address to which the message should be sent
-	 * @throws IOException
-	 */
-	private void send(Message message, InetSocketAddress address) throws IOException {
-		send(message, address.getAddress(), address.getPort());
-	}
+				case LIST_DIGEST: {
+					antiEntropy.digest((ListDigestMessage) message, sender);
+					break;
+				}
 
-	/**
-	 * Sends a message to the given address and port.
-	 *
-	 * @param message the message to send
-	 * @param address the address to which the message should be sent
-	 * @param port    the port on which the message should be sent
-	 * @throws IOException
-	 */
-	private void send(Message message, InetAddress address, int port) throws IOException {
-		send(message, new DatagramPacket(new byte[0], 0, address, port));
-	}
+				case LIST_REPAIR: {
+					log.printf("Received repair entries from %s\n", sender);
+					antiEntropy.repair((ListRepairMessage) message, sender);
+					break;
+				}
 
-	/**
-	 * Sends a message using the given packet object, packet address
-	 * will be left untouched.
-	 *
-	 * @param message the message to send
-	 * @param packet  the packed in which the payload should be encapsulated
-	 * @throws IOException
-	 */
-	private void send(Message message, DatagramPacket packet) throws IOException {
-		packet.setData(Message.serialize(message));
-		socket.send(packet);
+				case MEMBERS: {
+					membership.receive((MembersMessage) message, sender);
+					break;
+				}
+
+				case MEMBERS_REQUEST: {
+					log.printf("Received members request from %s\n", sender);
+					send(membership.live(), sender);
+					break;
+				}
+
+				case SERVICE_LIST_REQUEST: {
+					ServiceListRequestMessage msg = (ServiceListRequestMessage) message;
+					log.printf("Received list request for service [%d] from %s\n", msg.service, sender);
+					send(new ServiceListMessage(msg.service, directory.instances(msg.service)), sender);
+					break;
+				}
+
+				default:
+					log.printf("Received unknown message: %s\n", message);
+			}
+		}
+
+		/**
+		 * Queues a message for sending to the given address.
+		 * The message is actually sent once the event loop flushes its outbox.
+		 *
+		 * @param message the message to send
+		 * @param address the address to which the message should be sent
+		 * @throws IOException
+		 */
+		private void send(Message message, InetSocketAddress address) throws IOException {
+			loop.send(message, address);
+		}
 	}
 
 	/**
 	 * Launcher adapter
 	 *
-	 * @param args command line argument; first arg must be listening port
+	 * @param args command line argument; first arg must be the resolver index,
+	 *             second optional arg is the number of workers
 	 */
 	public static Resolver intantiate(String... args) {
-		return new Resolver(Integer.parseInt(args[0]));
+		int workers = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+		return new Resolver(Integer.parseInt(args[0]), workers);
 	}
 }
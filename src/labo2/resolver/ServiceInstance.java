@@ -3,11 +3,11 @@ package labo2.resolver;
 import java.net.InetSocketAddress;
 
 public class ServiceInstance {
-	public final byte service;
+	public final int service;
 	public final InetSocketAddress address;
 	public final int agentPort;
 
-	public ServiceInstance(byte service, InetSocketAddress address, int agentPort) {
+	public ServiceInstance(int service, InetSocketAddress address, int agentPort) {
 		this.service = service;
 		this.address = address;
 		this.agentPort = agentPort;
@@ -22,4 +22,9 @@ public class ServiceInstance {
 			return service == other.service && address.equals(other.address);
 		}
 	}
+
+	@Override
+	public int hashCode() {
+		return 31 * service + address.hashCode();
+	}
 }
@@ -0,0 +1,466 @@
+package labo2.resolver;
+
+import labo2.protocol.ListAddMessage;
+import labo2.protocol.ListRemoveMessage;
+import labo2.protocol.Message;
+import labo2.utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Persistent storage of the directory of a resolver.
+ * <p>
+ * Every directory mutation is appended to a write-ahead log. The log is
+ * periodically compacted into a snapshot file, written through a memory
+ * mapping and atomically renamed into place. On startup, the snapshot is
+ * loaded and the log is replayed, before the resolver synchronizes with
+ * its peers.
+ * <p>
+ * Log files are numbered by generation. Compaction starts a new generation
+ * atomically with capturing the directory content, and the snapshot records
+ * the first generation it does not include. Older log files are deleted once
+ * the snapshot is in place, and a crash at any point leaves a consistent
+ * snapshot and log pair.
+ * <p>
+ * Log records are written to the file system but the log is never forced to
+ * the storage device: a mutation survives a crash of the resolver process
+ * as soon as it is acknowledged, but the tail of the log may be lost on a
+ * power failure or a crash of the operating system. This is acceptable since
+ * a restarted resolver first synchronizes with its peers, only a cold restart
+ * of every resolver at once relies on the store alone. Snapshots are forced
+ * before being moved into place, so that a log is never deleted before the
+ * state it holds is durable.
+ * <p>
+ * Persistence is enabled by setting the labo2.resolver.data system property
+ * to the path of a data directory.
+ */
+class Store {
+	/**
+	 * Time between two compactions.
+	 */
+	static final long COMPACT_INTERVAL = 30000;
+
+	/**
+	 * Snapshot file header: magic, format, epoch, version, sync peer, sync
+	 * epoch, sync version, next log generation, clock size, cloud size and
+	 * entry count. The header is followed by the clock, the cloud and entries.
+	 */
+	private static final int MAGIC = 0x4C423253;
+	private static final int FORMAT = 3;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 8 + 8 + 8 + 4 + 4 + 4;
+
+	/**
+	 * Size of a snapshot dot: origin and counter.
+	 */
+	private static final int DOT_SIZE = 1 + 8;
+
+	/**
+	 * Size of a snapshot entry: service, address, port, agent port and dot.
+	 */
+	private static final int ENTRY_SIZE = 4 + 4 + 4 + 4 + DOT_SIZE;
+
+	/**
+	 * Log record types
+	 */
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_REMOVE = 2;
+	private static final byte RECORD_SYNC = 4;
+	private static final byte RECORD_CLOCK = 5;
+
+	private final Logger log;
+	private final Path path;
+	private final ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+	private final ByteBuffer record = ByteBuffer.allocate(1 + 8 * 256);
+
+	/**
+	 * Lock serializing compactions
+	 */
+	private final Object compaction = new Object();
+
+	private Directory directory;
+
+	/**
+	 * Current log file and its generation
+	 */
+	private FileChannel wal;
+	private long generation;
+
+	/**
+	 * Number of records appended to the current log file
+	 */
+	private long records = 0;
+
+	/**
+	 * Index, epoch and version of the last resolver synchronized with
+	 */
+	private int syncPeer = -1;
+	private long syncEpoch = 0;
+	private long syncVersion = -1;
+
+	/**
+	 * Opens the store of a resolver, if persistence is enabled.
+	 *
+	 * @param log the logger to use
+	 * @param id  the resolver index
+	 * @return the store, or null if persistence is disabled
+	 * @throws IOException
+	 */
+	static Store open(Logger log, int id) throws IOException {
+		String data = System.getProperty("labo2.resolver.data");
+		if (data == null) return null;
+		Path path = new File(data, "resolver-" + id).toPath();
+		Files.createDirectories(path);
+		return new Store(log, path);
+	}
+
+	private Store(Logger log, Path path) {
+		this.log = log;
+		this.path = path;
+	}
+
+	int syncPeer() {
+		return syncPeer;
+	}
+
+	long syncEpoch() {
+		return syncEpoch;
+	}
+
+	long syncVersion() {
+		return syncVersion;
+	}
+
+	/**
+	 * Loads the snapshot and replays the log into the given directory, then
+	 * starts journaling the directory mutations.
+	 *
+	 * @param directory the directory, must be empty
+	 * @throws IOException
+	 */
+	void load(Directory directory) throws IOException {
+		long start = System.currentTimeMillis();
+		long nextGeneration = loadSnapshot(directory);
+
+		// Replay logs, deleting those already included in the snapshot
+		TreeMap<Long, Path> logs = logs();
+		long replayed = 0;
+		for (long gen : logs.keySet()) {
+			if (gen < nextGeneration) {
+				Files.delete(logs.get(gen));
+			} else {
+				replayed += replay(directory, logs.get(gen));
+			}
+		}
+		log.printf("Loaded %d instances and %d log records in %d ms\n",
+			directory.size(), replayed, System.currentTimeMillis() - start);
+
+		// Start a new log generation
+		generation = Math.max(nextGeneration, logs.isEmpty() ? 0 : logs.lastKey() + 1);
+		wal = openLog(generation);
+		this.directory = directory;
+		directory.attach(this);
+		scheduler.scheduleWithFixedDelay(this::compactSafely, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Loads the snapshot file, if any.
+	 *
+	 * @return the first log generation not included in the snapshot
+	 */
+	private long loadSnapshot(Directory directory) throws IOException {
+		Path file = path.resolve("snapshot");
+		if (!Files.exists(file)) return 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT) {
+				throw new IOException("Invalid snapshot file: " + file);
+			}
+			long epoch = buffer.getLong();
+			long version = buffer.getLong();
+			syncPeer = buffer.getInt();
+			syncEpoch = buffer.getLong();
+			syncVersion = buffer.getLong();
+			long nextGeneration = buffer.getLong();
+			long[] clock = new long[buffer.getInt()];
+			int dots = buffer.getInt();
+			int count = buffer.getInt();
+			for (int i = 0; i < clock.length; i++) {
+				clock[i] = buffer.getLong();
+			}
+			List<Dot> cloud = new ArrayList<>(dots);
+			for (int i = 0; i < dots; i++) {
+				cloud.add(new Dot(buffer.get(), buffer.getLong()));
+			}
+			List<Message> entries = new ArrayList<>(count);
+			byte[] ip = new byte[4];
+			for (int i = 0; i < count; i++) {
+				int service = buffer.getInt();
+				buffer.get(ip);
+				InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(ip), buffer.getInt());
+				entries.add(new ListAddMessage(service, address, buffer.getInt(), buffer.get(), buffer.getLong()));
+			}
+			directory.restore(epoch, version, entries, clock, cloud);
+			return nextGeneration;
+		}
+	}
+
+	/**
+	 * Replays a log file into the directory.
+	 * A truncated record at the end of the file, left by a crash, is ignored.
+	 *
+	 * @return the number of records replayed
+	 */
+	private long replay(Directory directory, Path file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		long count = 0;
+		byte[] ip = new byte[4];
+		try {
+			while (buffer.hasRemaining()) {
+				byte type = buffer.get();
+				switch (type) {
+					case RECORD_ADD: {
+						int service = buffer.getInt();
+						buffer.get(ip);
+						InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(ip), buffer.getInt());
+						directory.apply(new ListAddMessage(service, address, buffer.getInt(), buffer.get(), buffer.getLong()));
+						break;
+					}
+					case RECORD_REMOVE: {
+						int service = buffer.getInt();
+						buffer.get(ip);
+						InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(ip), buffer.getInt());
+						directory.apply(new ListRemoveMessage(service, address, buffer.get(), buffer.getLong()));
+						break;
+					}
+					case RECORD_CLOCK: {
+						long[] clock = new long[buffer.get() & 0xFF];
+						for (int i = 0; i < clock.length; i++) {
+							clock[i] = buffer.getLong();
+						}
+						directory.advance(clock);
+						break;
+					}
+					case RECORD_SYNC:
+						syncPeer = buffer.getInt();
+						syncEpoch = buffer.getLong();
+						syncVersion = buffer.getLong();
+						break;
+					default:
+						throw new IOException("Invalid log record in " + file);
+				}
+				count++;
+			}
+		} catch (BufferUnderflowException truncated) {
+			log.printf("Ignoring truncated record at the end of %s\n", file);
+		}
+		return count;
+	}
+
+	/**
+	 * Lists log files by generation.
+	 */
+	private TreeMap<Long, Path> logs() throws IOException {
+		TreeMap<Long, Path> logs = new TreeMap<>();
+		try (Stream<Path> files = Files.list(path)) {
+			files.forEach(file -> {
+				String name = file.getFileName().toString();
+				if (name.startsWith("wal.")) logs.put(Long.parseLong(name.substring(4)), file);
+			});
+		}
+		return logs;
+	}
+
+	private FileChannel openLog(long generation) throws IOException {
+		return FileChannel.open(path.resolve("wal." + generation),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Appends a directory mutation to the log.
+	 * Called by the directory, under its lock.
+	 *
+	 * @param mutation the LIST_ADD or LIST_REMOVE mutation
+	 */
+	synchronized void append(Message mutation) {
+		record.clear();
+		if (mutation instanceof ListAddMessage) {
+			ListAddMessage add = (ListAddMessage) mutation;
+			record.put(RECORD_ADD).putInt(add.service).put(add.address.getAddress().getAddress());
+			record.putInt(add.address.getPort()).putInt(add.agentPort);
+			record.put(add.origin).putLong(add.counter);
+		} else {
+			ListRemoveMessage remove = (ListRemoveMessage) mutation;
+			record.put(RECORD_REMOVE).putInt(remove.service).put(remove.address.getAddress().getAddress());
+			record.putInt(remove.address.getPort());
+			record.put(remove.origin).putLong(remove.counter);
+		}
+		write();
+	}
+
+	/**
+	 * Records that the causal context of the directory was merged with the
+	 * clock of another directory.
+	 * Called by the directory, under its lock.
+	 *
+	 * @param clock the merged clock
+	 */
+	synchronized void clock(long[] clock) {
+		record.clear();
+		record.put(RECORD_CLOCK).put((byte) clock.length);
+		for (long counter : clock) {
+			record.putLong(counter);
+		}
+		write();
+	}
+
+	/**
+	 * Records a synchronization with another resolver.
+	 *
+	 * @param peer    the index of the other resolver
+	 * @param epoch   the epoch of the other resolver
+	 * @param version the version of the other resolver
+	 */
+	synchronized void synced(int peer, long epoch, long version) {
+		syncPeer = peer;
+		syncEpoch = epoch;
+		syncVersion = version;
+		record.clear();
+		record.put(RECORD_SYNC).putInt(peer).putLong(epoch).putLong(version);
+		write();
+	}
+
+	/**
+	 * Writes the current record to the log, without forcing it to the storage
+	 * device. Failing to write the log is fatal.
+	 */
+	private void write() {
+		if (!wal.isOpen()) return;
+		record.flip();
+		try {
+			while (record.hasRemaining()) wal.write(record);
+			records++;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Starts a new log generation.
+	 * Called by the directory, under its lock, while capturing its content.
+	 */
+	private synchronized void rotate() {
+		try {
+			wal.close();
+			wal = openLog(++generation);
+			records = 0;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Compacts the log into a new snapshot.
+	 *
+	 * @throws IOException
+	 */
+	void compact() throws IOException {
+		synchronized (compaction) {
+			synchronized (this) {
+				if (records == 0 || !wal.isOpen()) return;
+			}
+			writeSnapshot();
+		}
+	}
+
+	/**
+	 * Captures the directory and writes it to a new snapshot.
+	 */
+	private void writeSnapshot() throws IOException {
+		Directory.Changes state = directory.capture(this::rotate);
+		long nextGeneration;
+		int peer;
+		long epoch, version;
+		synchronized (this) {
+			nextGeneration = generation;
+			peer = syncPeer;
+			epoch = syncEpoch;
+			version = syncVersion;
+		}
+
+		// Write the snapshot through a memory mapping, then atomically move it into place
+		Path tmp = path.resolve("snapshot.tmp");
+		Files.deleteIfExists(tmp);
+		try (FileChannel channel = FileChannel.open(tmp,
+			StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + 8L * state.clock.length + (long) DOT_SIZE * state.cloud.size()
+					+ (long) ENTRY_SIZE * state.entries.size());
+			buffer.putInt(MAGIC).putInt(FORMAT);
+			buffer.putLong(state.epoch).putLong(state.version);
+			buffer.putInt(peer).putLong(epoch).putLong(version);
+			buffer.putLong(nextGeneration);
+			buffer.putInt(state.clock.length).putInt(state.cloud.size()).putInt(state.entries.size());
+			for (long counter : state.clock) {
+				buffer.putLong(counter);
+			}
+			for (Dot dot : state.cloud) {
+				buffer.put(dot.origin).putLong(dot.counter);
+			}
+			for (Message entry : state.entries) {
+				ListAddMessage add = (ListAddMessage) entry;
+				buffer.putInt(add.service).put(add.address.getAddress().getAddress());
+				buffer.putInt(add.address.getPort()).putInt(add.agentPort);
+				buffer.put(add.origin).putLong(add.counter);
+			}
+			buffer.force();
+		}
+		Files.move(tmp, path.resolve("snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		// Delete logs included in the snapshot
+		for (Path file : logs().headMap(nextGeneration).values()) {
+			Files.delete(file);
+		}
+		log.printf("Compacted %d instances into snapshot\n", state.entries.size());
+	}
+
+	private void compactSafely() {
+		try {
+			compact();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Compacts the log one last time and closes the store.
+	 *
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		scheduler.shutdownNow();
+		compact();
+		synchronized (this) {
+			wal.close();
+		}
+	}
+}
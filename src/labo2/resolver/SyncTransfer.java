@@ -0,0 +1,84 @@
+package labo2.resolver;
+
+import labo2.protocol.ListSyncChunkMessage;
+import labo2.protocol.ListSyncCommitMessage;
+import labo2.protocol.Message;
+import labo2.protocol.Protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A list synchronization transfer served to another resolver.
+ * <p>
+ * The directory, or its changes since the version known by the requester,
+ * is encoded once into chunks when the transfer begins. The
+ * encoded chunks are kept for a while so that missing chunks can be sent
+ * again from the same snapshot of the directory.
+ * <p>
+ * Chunks are encoded in the wire format version negotiated with the
+ * requester. In version 2, a transfer small enough to fit in a single
+ * datagram, typically a delta, is also packed with its commit in an envelope.
+ */
+class SyncTransfer {
+	/**
+	 * Time after which an idle transfer is discarded.
+	 */
+	static final long TTL = 30000;
+
+	/**
+	 * Encoded chunks, indexed by sequence number
+	 */
+	final List<byte[]> chunks = new ArrayList<>();
+
+	/**
+	 * Encoded commit message
+	 */
+	final byte[] commit;
+
+	/**
+	 * Chunks and commit in a single datagram, null if they do not fit or the
+	 * version does not support envelopes
+	 */
+	final byte[] envelope;
+
+	/**
+	 * Time of the last activity of this transfer
+	 */
+	volatile long lastActivity = System.currentTimeMillis();
+
+	/**
+	 * Constructs a new transfer from the given directory changes.
+	 *
+	 * @param changes the changes to transfer
+	 * @param version the wire format version of the requester
+	 * @throws IOException
+	 */
+	SyncTransfer(Directory.Changes changes, int version) throws IOException {
+		List<Message> messages = new ArrayList<>();
+		messages.addAll(ListSyncChunkMessage.split(changes.entries, version));
+		for (Message chunk : messages) {
+			chunks.add(Message.serialize(chunk, version));
+		}
+		Message commit = new ListSyncCommitMessage(
+			chunks.size(), changes.entries.size(), ListSyncCommitMessage.checksum(changes.entries),
+			changes.epoch, changes.version, changes.delta, changes.clock);
+		this.commit = Message.serialize(commit, version);
+		messages.add(commit);
+
+		byte[] envelope = null;
+		if (version >= Protocol.V2 && chunks.size() == 1) {
+			envelope = Message.serialize(messages);
+			if (envelope.length > Protocol.MTU) envelope = null;
+		}
+		this.envelope = envelope;
+	}
+
+	/**
+	 * Returns true if this transfer has been idle for longer than TTL.
+	 */
+	boolean expired(long now) {
+		return now - lastActivity > TTL;
+	}
+}
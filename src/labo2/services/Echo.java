@@ -13,7 +13,7 @@ import java.net.SocketException;
  * A simple echo service sending back messages it receives.
  */
 public class Echo extends Task<Void> {
-	public static byte SERVICE_ID = 0;
+	public static int SERVICE_ID = 0;
 
 	private String name;
 	private DatagramSocket socket;
@@ -14,7 +14,7 @@ import java.net.SocketException;
  * every message it receives.
  */
 public class Time extends Task<Void> {
-	public static byte SERVICE_ID = 1;
+	public static int SERVICE_ID = 1;
 
 	private String name;
 	private DatagramSocket socket;
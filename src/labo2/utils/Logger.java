@@ -17,6 +17,30 @@ public class Logger {
 		return new Logger(prefix);
 	}
 
+	/**
+	 * Global output switch, used to silence loggers during benchmarks.
+	 */
+	private static volatile boolean enabled = true;
+
+	/**
+	 * Enables or disables output from every logger.
+	 *
+	 * @param enabled the new output status
+	 */
+	public static void setEnabled(boolean enabled) {
+		Logger.enabled = enabled;
+	}
+
+	/**
+	 * Returns whether loggers output anything, so that hot paths can skip
+	 * building the arguments of a message.
+	 *
+	 * @return the output status
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
 	private String prefix;
 
 	private Logger(String prefix) {
@@ -29,6 +53,7 @@ public class Logger {
 	 * @param s the string to print
 	 */
 	public void print(String s) {
+		if (!enabled) return;
 		synchronized (Logger.class) {
 			LocalDateTime now = LocalDateTime.now();
 			System.out.printf("[%15s] [%02d:%02d:%02d.%03d] %s", prefix,
@@ -53,6 +78,7 @@ public class Logger {
 	 * @param args arguments to the format string
 	 */
 	public void printf(String fmt, Object... args) {
+		if (!enabled) return;
 		print(String.format(fmt, args));
 	}
 }
@@ -0,0 +1,123 @@
+package labo2.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A hashed timer wheel.
+ * <p>
+ * Timeouts are hashed by deadline into a ring of slots, each slot covering
+ * one tick. Scheduling and cancelling are constant-time, whatever the number
+ * of pending timeouts; advancing the wheel only visits the slots of the
+ * elapsed ticks. A slot may hold timeouts of later rounds of the ring, those
+ * are kept until their deadline is reached. Cancelled timeouts are dropped
+ * lazily when their slot is visited.
+ * <p>
+ * This class is thread-safe. Expired values are handed to the consumer
+ * outside of the wheel lock, on the thread advancing the wheel.
+ *
+ * @param <T> the type of the values attached to timeouts
+ */
+public class TimerWheel<T> {
+	/**
+	 * A scheduled timeout.
+	 */
+	public static final class Timeout<T> {
+		private final T value;
+		private final long deadline;
+		private volatile boolean cancelled = false;
+
+		private Timeout(T value, long deadline) {
+			this.value = value;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels this timeout, its value will not be expired.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+	}
+
+	/**
+	 * Duration of a tick, in milliseconds
+	 */
+	private final long tick;
+
+	/**
+	 * Timeouts by slot, null if the slot never held any
+	 */
+	private final List<Timeout<T>>[] slots;
+
+	/**
+	 * Last tick visited by advance()
+	 */
+	private long current;
+
+	/**
+	 * Constructs a new wheel.
+	 *
+	 * @param tick  the duration of a tick, in milliseconds
+	 * @param size  the number of slots, a power of two
+	 * @param start the current time, in milliseconds
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tick, int size, long start) {
+		if (tick <= 0 || Integer.bitCount(size) != 1) throw new IllegalArgumentException();
+		this.tick = tick;
+		this.slots = new List[size];
+		this.current = start / tick;
+	}
+
+	/**
+	 * Schedules a timeout.
+	 *
+	 * @param value    the value to expire
+	 * @param deadline the time at which the value expires, in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public synchronized Timeout<T> schedule(T value, long deadline) {
+		Timeout<T> timeout = new Timeout<>(value, deadline);
+		// The first tick at which the deadline is reached, a deadline already
+		// past is expired by the next advance
+		long at = Math.max((deadline + tick - 1) / tick, current + 1);
+		int slot = (int) at & (slots.length - 1);
+		if (slots[slot] == null) slots[slot] = new ArrayList<>();
+		slots[slot].add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Advances the wheel to the given time, expiring every timeout whose
+	 * deadline is reached.
+	 *
+	 * @param now     the current time, in milliseconds
+	 * @param expired the consumer of expired values
+	 */
+	public void advance(long now, Consumer<T> expired) {
+		List<T> values = new ArrayList<>();
+		synchronized (this) {
+			long target = now / tick;
+			// Past a full turn, every slot has been elapsed
+			long from = Math.max(current + 1, target - slots.length + 1);
+			for (long t = from; t <= target; t++) {
+				List<Timeout<T>> slot = slots[(int) t & (slots.length - 1)];
+				if (slot == null) continue;
+				for (Iterator<Timeout<T>> it = slot.iterator(); it.hasNext(); ) {
+					Timeout<T> timeout = it.next();
+					if (timeout.cancelled) {
+						it.remove();
+					} else if (timeout.deadline <= now) {
+						it.remove();
+						values.add(timeout.value);
+					}
+				}
+			}
+			if (target > current) current = target;
+		}
+		for (T value : values) expired.accept(value);
+	}
+}